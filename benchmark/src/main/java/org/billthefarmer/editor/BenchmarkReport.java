@@ -0,0 +1,94 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Locale;
+
+// BenchmarkReport class
+//
+// Runs the highlight benchmarks with the GC profiler, and reports the
+// time and allocations per char, and per op, which for the region
+// benchmark is per region. Arguments are passed to JMH.
+public class BenchmarkReport
+{
+    private final static String TAG = "BenchmarkReport";
+
+    private final static String ALLOC_NORM = "gc.alloc.rate.norm";
+    private final static String REGION = "region";
+    private final static String FORMAT = "%-10s %-6s %10s %10s %10s %14s%n";
+
+    // main
+    public static void main(String[] args) throws Exception
+    {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .include(HighlightBenchmark.class.getName())
+            .addProfiler(GCProfiler.class)
+            .build();
+
+        System.out.println();
+        System.out.format(FORMAT, "Benchmark", "Syntax", "Size",
+                          "ns/char", "B/char", "B/op");
+
+        for (RunResult result: new Runner(options).run())
+        {
+            String name = result.getParams().getBenchmark();
+            name = name.substring(name.lastIndexOf('.') + 1);
+            String syntax = result.getParams().getParam("syntax");
+            int size = Integer.parseInt(result.getParams().getParam("size"));
+
+            // Chars per op, the whole text, or the average region
+            String text = Corpus.get(syntax, size);
+            double chars = text.length();
+            if (name.equals(REGION))
+                chars /= HighlightBenchmark.getRegions(new LineIndex(text));
+
+            double time = result.getPrimaryResult().getScore();
+            double bytes = alloc(result);
+            System.out.format(Locale.ROOT, FORMAT, name, syntax, size,
+                              String.format(Locale.ROOT, "%.3f",
+                                            time / chars),
+                              String.format(Locale.ROOT, "%.3f",
+                                            bytes / chars),
+                              String.format(Locale.ROOT, "%.0f", bytes));
+        }
+    }
+
+    // alloc
+    //
+    // Returns the bytes allocated per op, or NaN
+    private static double alloc(RunResult result)
+    {
+        for (String key: result.getSecondaryResults().keySet())
+            if (key.endsWith(ALLOC_NORM))
+                return result.getSecondaryResults().get(key).getScore();
+
+        return Double.NaN;
+    }
+}
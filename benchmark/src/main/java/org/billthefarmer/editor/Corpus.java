@@ -0,0 +1,102 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+// Corpus class
+//
+// Test text for each syntax, a sample file repeated up to the size
+// wanted, ending at the end of a line
+public class Corpus
+{
+    private final static String TAG = "Corpus";
+
+    private final static String CORPUS = "/corpus/";
+    private final static String SUFFIX = ".txt";
+
+    // get
+    public static String get(String syntax, int size) throws IOException
+    {
+        String sample = sample(syntax);
+        StringBuilder builder = new StringBuilder(size + sample.length());
+        while (builder.length() < size)
+            builder.append(sample);
+
+        int end = builder.lastIndexOf("\n", size - 1);
+        builder.setLength((end < 0)? size: end + 1);
+        return builder.toString();
+    }
+
+    // getSyntax
+    public static int getSyntax(String syntax)
+    {
+        switch (syntax)
+        {
+        case "CC":
+            return Constants.CC_SYNTAX;
+
+        case "HTML":
+            return Constants.HTML_SYNTAX;
+
+        case "CSS":
+            return Constants.CSS_SYNTAX;
+
+        case "ORG":
+            return Constants.ORG_SYNTAX;
+
+        case "MD":
+            return Constants.MD_SYNTAX;
+
+        case "SH":
+            return Constants.SH_SYNTAX;
+
+        case "DEF":
+            return Constants.DEF_SYNTAX;
+        }
+
+        throw new IllegalArgumentException("Unknown syntax " + syntax);
+    }
+
+    // sample
+    private static String sample(String syntax) throws IOException
+    {
+        String name = CORPUS + syntax.toLowerCase(Locale.ROOT) + SUFFIX;
+        try (InputStream in = Corpus.class.getResourceAsStream(name))
+        {
+            if (in == null)
+                throw new IOException("No corpus " + name);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[Constants.BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                out.write(buffer, 0, n);
+
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// HighlightBenchmark class
+//
+// Lexes a corpus for each syntax the way the highlighter does, both
+// the whole text in one go, as when the line states are first worked
+// out, and a region at a time, as when the view is highlighted. Each
+// run makes new Tokens, as the highlight task does, so the
+// allocations are those of a real run.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HighlightBenchmark
+{
+    @Param({"CC", "HTML", "CSS", "ORG", "MD", "SH", "DEF"})
+    public String syntax;
+
+    @Param({"10240", "1048576", "10485760"})
+    public int size;
+
+    private String text;
+    private Lexer lexer;
+    private LineIndex lines;
+    private int region;
+
+    // setup
+    @Setup
+    public void setup() throws IOException
+    {
+        text = Corpus.get(syntax, size);
+        lexer = new SyntaxRegistry().get(Corpus.getSyntax(syntax)).getLexer();
+        lines = new LineIndex(text);
+        lines.setStates(0, getStates(lexer, text, lines));
+        region = 0;
+    }
+
+    // document
+    @Benchmark
+    public Tokens document()
+    {
+        Tokens tokens = new Tokens();
+        lexer.lex(text, 0, text.length(), Lexer.NORMAL, tokens);
+        return tokens;
+    }
+
+    // region
+    //
+    // Lexes the next PREFETCH_LINES lines, from the state at the
+    // start of the first line, going back to the start at the end
+    @Benchmark
+    public Tokens region()
+    {
+        int first = region;
+        int last = Math.min(first + Constants.PREFETCH_LINES,
+                            lines.getLineCount());
+        region = (last < lines.getLineCount())? last: 0;
+
+        Tokens tokens = new Tokens();
+        lexer.lex(text, lines.getLineStart(first), lines.getLineEnd(last - 1),
+                  lines.getState(first), tokens);
+        return tokens;
+    }
+
+    // getStates
+    //
+    // Returns the state at the start of each line
+    public static int[] getStates(Lexer lexer, CharSequence text,
+                                  LineIndex lines)
+    {
+        int[] states = new int[lines.getLineCount()];
+        Tokens tokens = new Tokens();
+        int state = Lexer.NORMAL;
+        for (int line = 0; line < states.length; line++)
+        {
+            states[line] = state;
+            tokens.clear();
+            state = lexer.lex(text, lines.getLineStart(line),
+                              lines.getLineEnd(line), state, tokens);
+        }
+
+        return states;
+    }
+
+    // getRegions
+    //
+    // Returns the number of regions the text is lexed in
+    public static int getRegions(LineIndex lines)
+    {
+        return (lines.getLineCount() + Constants.PREFETCH_LINES - 1) /
+            Constants.PREFETCH_LINES;
+    }
+}
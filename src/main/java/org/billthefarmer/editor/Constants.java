@@ -9,6 +9,9 @@ public class Constants {
     public final static String CHANGED = "changed";
     public final static String CONTENT = "content";
     public final static String MODIFIED = "modified";
+    public final static String PAGE = "page";
+    public final static String ENDING = "ending";
+    public final static String BOM = "bom";
     public final static String PREF_FILE = "pref_file";
     public final static String PREF_HIGHLIGHT = "pref_highlight";
     public final static String PREF_PATHS = "pref_paths";
@@ -19,12 +22,15 @@ public class Constants {
     public final static String PREF_THEME = "pref_theme";
     public final static String PREF_TYPE = "pref_type";
     public final static String PREF_WRAP = "pref_wrap";
+    public final static String PREF_LIMIT = "pref_limit";
     public final static String DOCUMENTS = "Documents";
     public final static String FOLDER = "Folder:  ";
     public final static String UTF_8 = "UTF-8";
     public final static String NEW_FILE = "Untitled.txt";
     public final static String EDIT_FILE = "Editor.txt";
     public final static String HTML_FILE = "Editor.html";
+    public final static String TEMP_EXT = ".tmp";
+    public final static String JOURNAL_FOLDER = "journals";
     public final static String TEXT_HTML = "text/html";
     public final static String TEXT_PLAIN = "text/plain";
     public final static String TEXT_WILD = "text/*";
@@ -40,168 +46,173 @@ public class Constants {
         "org.billthefarmer.editor.fileprovider";
     public final static String OPEN_NEW =
         "org.billthefarmer.editor.OPEN_NEW";
-    public final static String CC_EXT =
-        "\\.(c(c|pp|xx|\\+\\+)?|go|h|java|js|kt|m|py|swift)";
-    public final static String HTML_EXT =
-        "\\.html?";
-    public final static String CSS_EXT =
-        "\\.css?";
-    public final static String ORG_EXT =
-        "\\.org";
-    public final static String MD_EXT =
-        "\\.md";
-    public final static String SH_EXT =
-        "\\.sh";
-    // Syntax patterns
-    public final static Pattern KEYWORDS = Pattern.compile
-        ("\\b(abstract|and|arguments|as(m|sert|sociativity)?|auto|break|" +
-         "case|catch|chan|char|class|con(st|tinue|venience)|continue|" +
-         "de(bugger|f|fault|fer|in|init|l|lete)|didset|do(ne)?|dynamic" +
-         "(type)?|el(if|se)|enum|esac|eval|ex(cept|ec|plicit|port|" +
-         "tends|tension|tern)|fal(lthrough|se)|fi(nal|nally)?|for|" +
-         "friend|from|fun(c(tion)?)?|get|global|go(to)?|if|" +
-         "im(plements|port)|in(fix|it|line|out|stanceof|terface|" +
-         "ternal)?|is|lambda|lazy|left|let|local|map|mut(able|ating)|" +
-         "namespace|native|new|nil|none|nonmutating|not|null|" +
-         "operator|optional|or|override|package|pass|postfix|" +
-         "pre(cedence|fix)|print|private|prot(ected|ocol)|public|" +
-         "raise|range|register|required|return|right|select|self|" +
-         "set|signed|sizeof|static|strictfp|struct|subscript|super|" +
-         "switch|synchronized|template|th(en|is|rows?)|transient|" +
-         "true|try|type(alias|def|id|name|of)?|un(ion|owned|signed)|" +
-         "using|va([lr])|virtual|void|volatile|weak|wh(en|ere|ile)|willset|" +
-         "with|yield)\\b", Pattern.MULTILINE);
-    public final static Pattern TYPES = Pattern.compile
-        ("\\b(j?bool(ean)?|([uj])?(byte|char|double|float|int(eger)?|" +
-         "long|short))\\b", Pattern.MULTILINE);
-    public final static Pattern ANNOTATION =
-        Pattern.compile("@\\b[A-Za-z]+\\b", Pattern.MULTILINE);
-    public final static Pattern CC_COMMENT = Pattern.compile
-        ("//.*$|(\"(?:\\\\[^\"]|\\\\\"|.)*?\")|(?s)/\\*.*?\\*/",
-         Pattern.MULTILINE);
-    public final static Pattern CLASS = Pattern.compile
-        ("\\b[A-Z][A-Za-z0-9_]+\\b", Pattern.MULTILINE);
-    public final static Pattern CONSTANT = Pattern.compile
-        ("\\b(([A-Z][A-Z0-9_]+)|(k[A-Z][A-Za-z0-9]+))\\b",
-         Pattern.MULTILINE);
-    public final static Pattern OPERATOR = Pattern.compile
-        ("[+-=:;<>|!%^&*/?]+", Pattern.MULTILINE);
-    public final static Pattern NUMBER = Pattern.compile
-        ("\\b\\d+(\\.\\d*)?(e([+\\-])?\\d+)?\\b",
-         Pattern.MULTILINE);
-    public final static Pattern QUOTED = Pattern.compile
-        // "'([^\\\\']+|\\\\([btnfr\"'\\\\]|" +
-        // "[0-3]?[0-7]{1,2}|u[0-9a-fA-F]{4}))*'|" +
-        ("\"([^\\\\\"]+|\\\\([btnfr\"'\\\\]|" +
-         "[0-3]?[0-7]{1,2}|u[0-9a-fA-F]{4}))*\"",
-         Pattern.MULTILINE);
-    public final static Pattern HTML_TAGS = Pattern.compile
-        ("\\b(html|base|head|link|meta|style|title|body|address|article|" +
-         "aside|footer|header|h\\d|hgroup|nav|section|blockquote|dd" +
-         "|div|dl|dt|figcaption|figure|hr|li|main|ol|p|pre|ul|a|abbr|" +
-         "b|bdi|bdo|br|cite|code|data|dfn|em|i|kbd|mark|q|rb|rp|rt|rtc|" +
-         "ruby|s|samp|small|span|strong|sub|sup|time|tt|u|var|wbr|area|" +
-         "audio|img|map|track|video|embed|iframe|object|" +
-         "param|picture|source|canvas|noscript|script|del|ins|caption|" +
-         "col|colgroup|table|tbody|td|tfoot|th|thead|tr|button|datalist|" +
-         "fieldset|form|input|label|legend|meter|optgroup|option|output|" +
-         "progress|select|textarea|details|dialog|menu|menuitem|summary" +
-         "|shadow|slot|template|acronym|applet|basefont|" +
-         "bgsound|big|blink|center|command|content|dir|element|font|" +
-         "frame|frameset|image|isindex|keygen|listing|marquee|" +
-         "multicol|nextid|nobr|noembed|noframes|plaintext|spacer|" +
-         "strike|xmp|doctype)\\b",
-         Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
-    public final static Pattern HTML_ATTRS = Pattern.compile
-        ("\\b(accept|accesskey|action|align|allow|alt|async|" +
-         "auto(capitalize|complete|focus|play)|background|" +
-         "bgcolor|border|buffered|challenge|charset|checked|cite|" +
-         "class|code(base)?|color|cols|colspan|content(" +
-         "editable)?|contextmenu|controls|coords|crossorigin|" +
-         "csp|data|datetime|decoding|def(ault|er)|dir|dirname|" +
-         "disabled|download|draggable|dropzone|enctype|enterkeyhint|" +
-         "equiv|for|form(action|novalidate)?|headers|height|" +
-         "hidden|high|href(lang)?|http|icon|id|importance|" +
-         "inputmode|integrity|intrinsicsize|ismap|itemprop|keytype|" +
-         "kind|label|lang|language|list|loading|loop|low|manifest|" +
-         "max|maxlength|media|method|min|minlength|multiple|muted|" +
-         "name|novalidate|open|optimum|pattern|ping|placeholder|" +
-         "poster|preload|property|radiogroup|readonly|referrerpolicy|" +
-         "rel|required|reversed|rows|rowspan|sandbox|scope|scoped|" +
-         "selected|shape|size|sizes|slot|span|spellcheck|src|srcdoc|" +
-         "srclang|srcset|start|step|style|summary|tabindex|target|" +
-         "title|translate|type|usemap|value|width|wrap)\\b",
-         Pattern.MULTILINE);
-    public final static Pattern HTML_COMMENT =
-        Pattern.compile("<!--.*?-->", Pattern.MULTILINE);
-    public final static Pattern CSS_STYLES = Pattern.compile
-        ("\\b(action|active|additive|adjust|after|align|all|alternates|" +
-         "animation|annotation|area|areas|as|asian|attachment|attr|" +
-         "auto|backdrop|backface|background|basis|before|behavior|" +
-         "bezier|bidi|blend|block|blur|border|both|bottom|box|break|" +
-         "brightness|calc|caps|caption|caret|cells|center|ch|change|" +
-         "character|charset|checked|child|circle|clamp|clear|clip|" +
-         "cm|collapse|color|column|columns|combine|composite|conic|" +
-         "content|contrast|count|counter|counters|cross|cubic|cue|" +
-         "cursor|decoration|default|deg|delay|dir|direction|" +
-         "disabled|display|dpcm|dpi|dppx|drop|duration|east|element|" +
-         "ellipse|em|emphasis|empty|enabled|end|env|events|ex|face|" +
-         "fade|fallback|family|feature|fill|filter|first|fit|flex|" +
-         "float|flow|focus|font|format|forms|fr|frames|fullscreen|" +
-         "function|gap|grad|gradient|grayscale|grid|grow|hanging|" +
-         "height|historical|hover|hsl|hsla|hue|hyphens|hz|image|import|" +
-         "in|increment|indent|indeterminate|index|inherit|initial|" +
-         "inline|inset|inside|invalid|invert|isolation|items|" +
-         "iteration|justify|khz|kerning|keyframes|lang|language|" +
-         "last|layout|leader|left|letter|ligatures|line|linear|link|" +
-         "list|local|margin|mask|matrix|matrix3d|max|media|min|" +
-         "minmax|mix|mm|mode|ms|name|namespace|negative|none|not|nth|" +
-         "numeric|object|of|offset|only|opacity|optical|optional|" +
-         "order|orientation|origin|ornaments|orphans|out|outline|" +
-         "outset|outside|overflow|override|pad|padding|page|path|pc|" +
-         "perspective|place|placeholder|play|pointer|polygon|" +
-         "position|prefix|property|pt|punctuation|px|q|quotes|rad|" +
-         "radial|radius|range|read|rect|relative|rem|rendering|repeat|" +
-         "repeating|required|reset|resize|revert|rgb|rgba|right|" +
-         "root|rotate|rotate3d|rotatex|rotatey|rotatez|row|rows|" +
-         "rule|s|saturate|scale|scale3d|scalex|scaley|scalez|scope|" +
-         "scroll|scrollbar|selection|self|sepia|set|settings|shadow|" +
-         "shape|shrink|side|size|sizing|skew|skewx|skewy|slice|" +
-         "slotted|snap|source|space|spacing|span|speak|src|start|" +
-         "state|static|steps|stop|stretch|style|styleset|stylistic|suffix|" +
-         "supports|swash|symbols|synthesis|system|tab|table|target|" +
-         "template|text|threshold|timing|top|touch|transform|" +
-         "transition|translate|translate3d|translatex|translatey|" +
-         "translatez|turn|type|underline|unicode|unset|upright|url|" +
-         "user|valid|values|var|variant|variation|vertical|vh|" +
-         "viewport|visibility|visited|vmax|vmin|vw|weight|white|" +
-         "widows|width|will|word|wrap|write|writing|x|y|z|zoom)\\b",
-         Pattern.MULTILINE);
-    public final static Pattern CSS_HEX = Pattern.compile
-        ("#\\b[A-Fa-f0-9]+\\b", Pattern.MULTILINE);
-    public final static Pattern ORG_HEADER = Pattern.compile
-        ("(^\\*+ +.+$)|(^#\\+.+$)", Pattern.MULTILINE);
-    public final static Pattern ORG_LINK = Pattern.compile
-        ("\\[\\[.*?]]", Pattern.MULTILINE);
-    public final static Pattern ORG_EMPH = Pattern.compile
-        ("(([*~/+=]+)\\b(\\w| )+?\\b\\2)|(\\b(_{1,2})(\\w| )+?\\5\\b)",
-         Pattern.MULTILINE);
-    public final static Pattern ORG_COMMENT = Pattern.compile
-        ("(^# .*$)|(@@.*?@@)", Pattern.MULTILINE);
-    public final static Pattern MD_HEADER = Pattern.compile
-        ("(^.+\\s+-+$)|(^.+\\s+=+$)|(^#+ +.+$)", Pattern.MULTILINE);
-    public final static Pattern MD_LINK = Pattern.compile
-        ("(!?\\[.+] *\\(.+\\))|(!?\\[.+] *\\[.+])|" +
-         "( *\\[.+]: +.+$)", Pattern.MULTILINE);
-    public final static Pattern MD_EMPH = Pattern.compile
-        ("(([*~]{1,2})\\b(\\w| )+?\\b\\2)|(\\b(_{1,2})(\\w| )+?\\5\\b)",
-         Pattern.MULTILINE);
-    public final static Pattern MD_CODE = Pattern.compile
-        ("(^ {4,}.+$)|(`.+?`)", Pattern.MULTILINE);
-    public final static Pattern SH_VAR = Pattern.compile
-        ("(\\$\\b\\w+\\b)|(\\$\\{.+?\\})|(\\$\\(.+?\\))", Pattern.MULTILINE);
-    public final static Pattern SH_COMMENT = Pattern.compile
-        ("#.*$", Pattern.MULTILINE);
+    public final static String[] CC_EXT =
+    {
+        ".c", ".cc", ".cpp", ".cxx", ".c++", ".go", ".h", ".java", ".js",
+        ".kt", ".m", ".py", ".swift"
+    };
+    public final static String[] HTML_EXT = {".htm", ".html"};
+    public final static String[] CSS_EXT = {".cs", ".css"};
+    public final static String[] ORG_EXT = {".org"};
+    public final static String[] MD_EXT = {".md"};
+    public final static String[] SH_EXT = {".sh"};
+    // Shebang interpreters and modeline modes, and the extensions
+    // they stand for
+    public final static String[] INTERPRETERS =
+    {
+        "ash", ".sh", "bash", ".sh", "dash", ".sh", "ksh", ".sh",
+        "sh", ".sh", "zsh", ".sh", "node", ".js", "nodejs", ".js",
+        "python", ".py", "make", ".mk"
+    };
+    public final static String[] MODES =
+    {
+        "bash", ".sh", "c", ".c", "c++", ".cc", "cpp", ".cc", "css", ".css",
+        "gfm", ".md", "go", ".go", "html", ".html", "java", ".java",
+        "javascript", ".js", "js", ".js", "json", ".json", "kotlin", ".kt",
+        "make", ".mk", "makefile", ".mk", "markdown", ".md", "objc", ".m",
+        "org", ".org", "python", ".py", "rust", ".rs", "sh", ".sh",
+        "shell-script", ".sh", "sql", ".sql", "swift", ".swift",
+        "yaml", ".yaml", "zsh", ".sh"
+    };
+    public final static String SYNTAX = "syntax";
+    public final static String SYNTAX_EXT = ".syntax";
+    // Syntax keywords and patterns
+    public final static String[] KEYWORDS =
+    {
+        "abstract", "and", "arguments", "as", "asm", "assert",
+        "associativity", "auto", "break", "case", "catch", "chan", "char",
+        "class", "const", "continue", "convenience", "debugger", "def",
+        "default", "defer", "dein", "deinit", "del", "delete", "didset",
+        "do", "done", "dynamic", "dynamictype", "elif", "else", "enum",
+        "esac", "eval", "except", "exec", "explicit", "export", "extends",
+        "extension", "extern", "fallthrough", "false", "fi", "final",
+        "finally", "for", "friend", "from", "fun", "func", "function",
+        "get", "global", "go", "goto", "if", "implements", "import", "in",
+        "infix", "init", "inline", "inout", "instanceof", "interface",
+        "internal", "is", "lambda", "lazy", "left", "let", "local", "map",
+        "mutable", "mutating", "namespace", "native", "new", "nil", "none",
+        "nonmutating", "not", "null", "operator", "optional", "or",
+        "override", "package", "pass", "postfix", "precedence", "prefix",
+        "print", "private", "protected", "protocol", "public", "raise",
+        "range", "register", "required", "return", "right", "select",
+        "self", "set", "signed", "sizeof", "static", "strictfp", "struct",
+        "subscript", "super", "switch", "synchronized", "template", "then",
+        "this", "throw", "throws", "transient", "true", "try", "type",
+        "typealias", "typedef", "typeid", "typename", "typeof", "union",
+        "unowned", "unsigned", "using", "val", "var", "virtual", "void",
+        "volatile", "weak", "when", "where", "while", "willset", "with",
+        "yield"
+    };
+    public final static String[] TYPES =
+    {
+        "bool", "boolean", "byte", "char", "double", "float", "int",
+        "integer", "jbool", "jboolean", "jbyte", "jchar", "jdouble",
+        "jfloat", "jint", "jinteger", "jlong", "jshort", "long", "short",
+        "ubyte", "uchar", "udouble", "ufloat", "uint", "uinteger", "ulong",
+        "ushort"
+    };
+    public final static String[] HTML_TAGS =
+    {
+        "a", "abbr", "acronym", "address", "applet", "area", "article",
+        "aside", "audio", "b", "base", "basefont", "bdi", "bdo", "bgsound",
+        "big", "blink", "blockquote", "body", "br", "button", "canvas",
+        "caption", "center", "cite", "code", "col", "colgroup", "command",
+        "content", "data", "datalist", "dd", "del", "details", "dfn",
+        "dialog", "dir", "div", "dl", "doctype", "dt", "element", "em",
+        "embed", "fieldset", "figcaption", "figure", "font", "footer",
+        "form", "frame", "frameset", "h0", "h1", "h2", "h3", "h4", "h5",
+        "h6", "h7", "h8", "h9", "head", "header", "hgroup", "hr", "html",
+        "i", "iframe", "image", "img", "input", "ins", "isindex", "kbd",
+        "keygen", "label", "legend", "li", "link", "listing", "main", "map",
+        "mark", "marquee", "menu", "menuitem", "meta", "meter", "multicol",
+        "nav", "nextid", "nobr", "noembed", "noframes", "noscript",
+        "object", "ol", "optgroup", "option", "output", "p", "param",
+        "picture", "plaintext", "pre", "progress", "q", "rb", "rp", "rt",
+        "rtc", "ruby", "s", "samp", "script", "section", "select", "shadow",
+        "slot", "small", "source", "spacer", "span", "strike", "strong",
+        "style", "sub", "summary", "sup", "table", "tbody", "td",
+        "template", "textarea", "tfoot", "th", "thead", "time", "title",
+        "tr", "track", "tt", "u", "ul", "var", "video", "wbr", "xmp"
+    };
+    public final static String[] HTML_ATTRS =
+    {
+        "accept", "accesskey", "action", "align", "allow", "alt", "async",
+        "autocapitalize", "autocomplete", "autofocus", "autoplay",
+        "background", "bgcolor", "border", "buffered", "challenge",
+        "charset", "checked", "cite", "class", "code", "codebase", "color",
+        "cols", "colspan", "content", "contenteditable", "contextmenu",
+        "controls", "coords", "crossorigin", "csp", "data", "datetime",
+        "decoding", "default", "defer", "dir", "dirname", "disabled",
+        "download", "draggable", "dropzone", "enctype", "enterkeyhint",
+        "equiv", "for", "form", "formaction", "formnovalidate", "headers",
+        "height", "hidden", "high", "href", "hreflang", "http", "icon",
+        "id", "importance", "inputmode", "integrity", "intrinsicsize",
+        "ismap", "itemprop", "keytype", "kind", "label", "lang", "language",
+        "list", "loading", "loop", "low", "manifest", "max", "maxlength",
+        "media", "method", "min", "minlength", "multiple", "muted", "name",
+        "novalidate", "open", "optimum", "pattern", "ping", "placeholder",
+        "poster", "preload", "property", "radiogroup", "readonly",
+        "referrerpolicy", "rel", "required", "reversed", "rows", "rowspan",
+        "sandbox", "scope", "scoped", "selected", "shape", "size", "sizes",
+        "slot", "span", "spellcheck", "src", "srcdoc", "srclang", "srcset",
+        "start", "step", "style", "summary", "tabindex", "target", "title",
+        "translate", "type", "usemap", "value", "width", "wrap"
+    };
+    public final static String[] CSS_STYLES =
+    {
+        "action", "active", "additive", "adjust", "after", "align", "all",
+        "alternates", "animation", "annotation", "area", "areas", "as",
+        "asian", "attachment", "attr", "auto", "backdrop", "backface",
+        "background", "basis", "before", "behavior", "bezier", "bidi",
+        "blend", "block", "blur", "border", "both", "bottom", "box",
+        "break", "brightness", "calc", "caps", "caption", "caret", "cells",
+        "center", "ch", "change", "character", "charset", "checked",
+        "child", "circle", "clamp", "clear", "clip", "cm", "collapse",
+        "color", "column", "columns", "combine", "composite", "conic",
+        "content", "contrast", "count", "counter", "counters", "cross",
+        "cubic", "cue", "cursor", "decoration", "default", "deg", "delay",
+        "dir", "direction", "disabled", "display", "dpcm", "dpi", "dppx",
+        "drop", "duration", "east", "element", "ellipse", "em", "emphasis",
+        "empty", "enabled", "end", "env", "events", "ex", "face", "fade",
+        "fallback", "family", "feature", "fill", "filter", "first", "fit",
+        "flex", "float", "flow", "focus", "font", "format", "forms", "fr",
+        "frames", "fullscreen", "function", "gap", "grad", "gradient",
+        "grayscale", "grid", "grow", "hanging", "height", "historical",
+        "hover", "hsl", "hsla", "hue", "hyphens", "hz", "image", "import",
+        "in", "increment", "indent", "indeterminate", "index", "inherit",
+        "initial", "inline", "inset", "inside", "invalid", "invert",
+        "isolation", "items", "iteration", "justify", "kerning",
+        "keyframes", "khz", "lang", "language", "last", "layout", "leader",
+        "left", "letter", "ligatures", "line", "linear", "link", "list",
+        "local", "margin", "mask", "matrix", "matrix3d", "max", "media",
+        "min", "minmax", "mix", "mm", "mode", "ms", "name", "namespace",
+        "negative", "none", "not", "nth", "numeric", "object", "of",
+        "offset", "only", "opacity", "optical", "optional", "order",
+        "orientation", "origin", "ornaments", "orphans", "out", "outline",
+        "outset", "outside", "overflow", "override", "pad", "padding",
+        "page", "path", "pc", "perspective", "place", "placeholder", "play",
+        "pointer", "polygon", "position", "prefix", "property", "pt",
+        "punctuation", "px", "q", "quotes", "rad", "radial", "radius",
+        "range", "read", "rect", "relative", "rem", "rendering", "repeat",
+        "repeating", "required", "reset", "resize", "revert", "rgb", "rgba",
+        "right", "root", "rotate", "rotate3d", "rotatex", "rotatey",
+        "rotatez", "row", "rows", "rule", "s", "saturate", "scale",
+        "scale3d", "scalex", "scaley", "scalez", "scope", "scroll",
+        "scrollbar", "selection", "self", "sepia", "set", "settings",
+        "shadow", "shape", "shrink", "side", "size", "sizing", "skew",
+        "skewx", "skewy", "slice", "slotted", "snap", "source", "space",
+        "spacing", "span", "speak", "src", "start", "state", "static",
+        "steps", "stop", "stretch", "style", "styleset", "stylistic",
+        "suffix", "supports", "swash", "symbols", "synthesis", "system",
+        "tab", "table", "target", "template", "text", "threshold", "timing",
+        "top", "touch", "transform", "transition", "translate",
+        "translate3d", "translatex", "translatey", "translatez", "turn",
+        "type", "underline", "unicode", "unset", "upright", "url", "user",
+        "valid", "values", "var", "variant", "variation", "vertical", "vh",
+        "viewport", "visibility", "visited", "vmax", "vmin", "vw", "weight",
+        "white", "widows", "width", "will", "word", "wrap", "write",
+        "writing", "x", "y", "z", "zoom"
+    };
     public final static Pattern MODE_PATTERN = Pattern.compile
         ("^\\S+\\s+ed:(.+)$", Pattern.MULTILINE);
     public final static Pattern OPTION_PATTERN = Pattern.compile
@@ -213,10 +224,42 @@ public class Constants {
     final static int MENU_SIZE = 192;
     final static int FIRST_SIZE = 256;
     final static int TOO_LARGE = 524288;
+    final static int EDIT_COPIES = 2;
+    final static int BUFFER_SIZE = 8192;
+    final static int FIRST_LOAD = 16384;
+    final static int BATCH_LOAD = 65536;
+    final static int VIEW_LARGE = 16777216;
+    final static int VIEW_PAGES = 3;
     final static int FOLDER_OFFSET = 0x7d000000;
     final static int POSITION_DELAY = 128;
     final static int UPDATE_DELAY = 128;
     final static int FIND_DELAY = 128;
+    final static int FRAME_DELAY = 16;
+    final static long FRAME_BUDGET = 4000000;
+    final static int SLICE_LINES = 8;
+    final static float FLING_VELOCITY = 2;
+    final static int PREFETCH_LINES = 512;
+    final static int PREFETCH_SPANS = 4096;
+    final static int PATTERN_CACHE = 16;
+    final static int TYPE_AHEAD_MATCHES = 256;
+    final static int TYPE_AHEAD_CHARS = 1048576;
+    final static int MATCH_BATCH = 1024;
+    final static int MATCH_LIMIT = 262144;
+    final static int MATCH_SPANS = 256;
+    final static int FIND_THREADS = 4;
+    final static int FIND_WAITING = 64;
+    final static int FIND_CHUNK = 65536;
+    final static int FIND_LINE = 1048576;
+    final static int FIND_OVERLAP = 4096;
+    final static int FIND_TIMEOUT = 5000;
+    final static int SEARCH_TIMEOUT = 500;
+    final static int MATCH_TIMEOUT = 10000;
+    final static int REPLACE_TIMEOUT = 10000;
+    final static int WATCHDOG_THREADS = 8;
+    final static int JOURNAL_DELAY = 1000;
+    final static int JOURNAL_BATCH = 65536;
+    final static String INDEX_FILE = "trigram.index";
+    final static int INDEX_SIZE = 4194304;
     final static int MAX_PATHS = 10;
     private final static int GET_TEXT = 0;
     final static int REQUEST_READ = 1;
@@ -243,4 +286,5 @@ public class Constants {
     final static int MD_SYNTAX   = 5;
     final static int SH_SYNTAX   = 6;
     final static int DEF_SYNTAX  = 7;
+    final static int GRAMMAR_SYNTAX = 8;
 }
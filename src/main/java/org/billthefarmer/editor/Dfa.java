@@ -0,0 +1,550 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+// Dfa class
+//
+// A set of rules, each a simple regular expression, compiled into one
+// transition table. Matching reads each char once, whichever rules
+// there are, and returns the longest match, or the first rule of the
+// longest. Expressions may use literal chars, ., [] classes, \d \w \s
+// and their negations, ( | ) groups and the * + ? operators.
+public class Dfa
+{
+    private final static String TAG = "Dfa";
+
+    private final static int CHARS = 0x10000;
+    private final static int ASCII = 128;
+
+    // Char classes, class n is the chars from bounds[n] up to
+    // bounds[n + 1]
+    private final int[] bounds;
+    private final int[] ascii;
+    private final int classes;
+
+    // Next state for each state and class, -1 for none, and the rule
+    // matched in each state, or -1
+    private final int[] table;
+    private final int[] accepts;
+
+    // Dfa
+    private Dfa(int[] bounds, int[] table, int[] accepts)
+    {
+        this.bounds = bounds;
+        this.table = table;
+        this.accepts = accepts;
+        classes = bounds.length - 1;
+
+        ascii = new int[ASCII];
+        for (int c = 0; c < ASCII; c++)
+            ascii[c] = classOf(c);
+    }
+
+    // compile
+    //
+    // Compiles the rules, throws IllegalArgumentException if one of
+    // them can't be parsed
+    public static Dfa compile(String[] rules)
+    {
+        // Join the rules with a new start state
+        Nfa nfa = new Nfa();
+        int start = nfa.state();
+        for (int i = 0; i < rules.length; i++)
+        {
+            int[] fragment = new Parser(rules[i], nfa).parse();
+            nfa.epsilon(start, fragment[0]);
+            nfa.accept(fragment[1], i);
+        }
+
+        // Split the chars into classes that all the rules treat alike
+        TreeSet<Integer> points = new TreeSet<>();
+        points.add(0);
+        points.add(CHARS);
+        for (List<int[]> edges: nfa.edges)
+        {
+            for (int[] edge: edges)
+            {
+                points.add(edge[0]);
+                points.add(edge[1] + 1);
+            }
+        }
+
+        int[] bounds = new int[points.size()];
+        int n = 0;
+        for (int point: points)
+            bounds[n++] = point;
+
+        int classes = bounds.length - 1;
+
+        // Build the states, each a set of rule states
+        List<BitSet> sets = new ArrayList<>();
+        Map<BitSet, Integer> ids = new HashMap<>();
+        BitSet first = new BitSet();
+        first.set(start);
+        nfa.closure(first);
+        sets.add(first);
+        ids.put(first, 0);
+
+        List<int[]> rows = new ArrayList<>();
+        for (int s = 0; s < sets.size(); s++)
+        {
+            BitSet set = sets.get(s);
+            int[] row = new int[classes];
+            for (int k = 0; k < classes; k++)
+            {
+                BitSet next = nfa.move(set, bounds[k]);
+                if (next.isEmpty())
+                {
+                    row[k] = -1;
+                    continue;
+                }
+
+                Integer id = ids.get(next);
+                if (id == null)
+                {
+                    id = sets.size();
+                    sets.add(next);
+                    ids.put(next, id);
+                }
+
+                row[k] = id;
+            }
+
+            rows.add(row);
+        }
+
+        int[] table = new int[sets.size() * classes];
+        int[] accepts = new int[sets.size()];
+        for (int s = 0; s < sets.size(); s++)
+        {
+            System.arraycopy(rows.get(s), 0, table, s * classes, classes);
+            accepts[s] = nfa.accepted(sets.get(s));
+        }
+
+        return new Dfa(bounds, table, accepts);
+    }
+
+    // match
+    //
+    // Returns the rule matching the most text from start, shifted up
+    // 32 bits, or'ed with the end of the match, or -1 if none match.
+    // Empty matches don't count.
+    public long match(CharSequence text, int start, int end)
+    {
+        long result = -1;
+        int state = 0;
+        for (int i = start; i < end; i++)
+        {
+            char c = text.charAt(i);
+            state = table[state * classes +
+                          ((c < ASCII)? ascii[c]: classOf(c))];
+            if (state < 0)
+                break;
+
+            if (accepts[state] >= 0)
+                result = ((long) accepts[state] << 32) | (i + 1);
+        }
+
+        return result;
+    }
+
+    // getStates
+    public int getStates()
+    {
+        return accepts.length;
+    }
+
+    // classOf
+    private int classOf(int c)
+    {
+        int index = Arrays.binarySearch(bounds, c);
+        return (index >= 0)? index: -index - 2;
+    }
+
+    // Nfa class, only used while compiling
+    private static class Nfa
+    {
+        // For each state, the states it goes to without a char, the
+        // char ranges out of it and their states, and the rule it
+        // accepts, or -1
+        private final List<List<Integer>> epsilons = new ArrayList<>();
+        private final List<List<int[]>> edges = new ArrayList<>();
+        private final List<Integer> accepts = new ArrayList<>();
+
+        // state
+        private int state()
+        {
+            epsilons.add(new ArrayList<Integer>());
+            edges.add(new ArrayList<int[]>());
+            accepts.add(-1);
+            return accepts.size() - 1;
+        }
+
+        // epsilon
+        private void epsilon(int from, int to)
+        {
+            epsilons.get(from).add(to);
+        }
+
+        // edge
+        //
+        // Adds an edge for each range, ranges are pairs of first and
+        // last chars
+        private void edge(int from, int[] ranges, int to)
+        {
+            for (int i = 0; i < ranges.length; i += 2)
+                edges.get(from).add(new int[] {ranges[i], ranges[i + 1], to});
+        }
+
+        // accept
+        private void accept(int state, int rule)
+        {
+            accepts.set(state, rule);
+        }
+
+        // accepted
+        //
+        // Returns the first rule accepted by the set of states, or -1
+        private int accepted(BitSet set)
+        {
+            int rule = -1;
+            for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1))
+            {
+                int accept = accepts.get(s);
+                if (accept >= 0 && (rule < 0 || accept < rule))
+                    rule = accept;
+            }
+
+            return rule;
+        }
+
+        // closure
+        //
+        // Adds the states that can be reached without a char
+        private void closure(BitSet set)
+        {
+            List<Integer> stack = new ArrayList<>();
+            for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1))
+                stack.add(s);
+
+            while (!stack.isEmpty())
+            {
+                int s = stack.remove(stack.size() - 1);
+                for (int next: epsilons.get(s))
+                {
+                    if (!set.get(next))
+                    {
+                        set.set(next);
+                        stack.add(next);
+                    }
+                }
+            }
+        }
+
+        // move
+        //
+        // Returns the states reached from the set by the char
+        private BitSet move(BitSet set, int c)
+        {
+            BitSet next = new BitSet();
+            for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1))
+                for (int[] edge: edges.get(s))
+                    if (c >= edge[0] && c <= edge[1])
+                        next.set(edge[2]);
+
+            closure(next);
+            return next;
+        }
+    }
+
+    // Parser class
+    //
+    // Parses an expression into a fragment of the Nfa, returned as
+    // the start and end states
+    private static class Parser
+    {
+        private final static int[] DIGITS = {'0', '9'};
+        private final static int[] WORDS =
+        {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+        private final static int[] SPACES = {'\t', '\t', ' ', ' '};
+        private final static int[] ANY = {0, '\n' - 1, '\n' + 1, CHARS - 1};
+
+        private final String rule;
+        private final Nfa nfa;
+        private int index;
+
+        // Parser
+        private Parser(String rule, Nfa nfa)
+        {
+            this.rule = rule;
+            this.nfa = nfa;
+        }
+
+        // parse
+        private int[] parse()
+        {
+            int[] fragment = alternation();
+            if (index < rule.length())
+                throw error("Unexpected " + rule.charAt(index));
+
+            return fragment;
+        }
+
+        // alternation
+        private int[] alternation()
+        {
+            int[] fragment = sequence();
+            if (!peek('|'))
+                return fragment;
+
+            int start = nfa.state();
+            int end = nfa.state();
+            nfa.epsilon(start, fragment[0]);
+            nfa.epsilon(fragment[1], end);
+            while (peek('|'))
+            {
+                index++;
+                fragment = sequence();
+                nfa.epsilon(start, fragment[0]);
+                nfa.epsilon(fragment[1], end);
+            }
+
+            return new int[] {start, end};
+        }
+
+        // sequence
+        private int[] sequence()
+        {
+            int start = nfa.state();
+            int end = start;
+            while (index < rule.length() && !peek('|') && !peek(')'))
+            {
+                int[] fragment = repeat();
+                nfa.epsilon(end, fragment[0]);
+                end = fragment[1];
+            }
+
+            return new int[] {start, end};
+        }
+
+        // repeat
+        private int[] repeat()
+        {
+            int[] fragment = atom();
+            while (peek('*') || peek('+') || peek('?'))
+            {
+                char c = rule.charAt(index++);
+                int start = nfa.state();
+                int end = nfa.state();
+                nfa.epsilon(start, fragment[0]);
+                nfa.epsilon(fragment[1], end);
+                if (c != '+')
+                    nfa.epsilon(start, end);
+                if (c != '?')
+                    nfa.epsilon(fragment[1], fragment[0]);
+
+                fragment = new int[] {start, end};
+            }
+
+            return fragment;
+        }
+
+        // atom
+        private int[] atom()
+        {
+            char c = rule.charAt(index++);
+            switch (c)
+            {
+            case '(':
+                int[] fragment = alternation();
+                if (!peek(')'))
+                    throw error("Missing )");
+                index++;
+                return fragment;
+
+            case '[':
+                return chars(set());
+
+            case '.':
+                return chars(ANY);
+
+            case '\\':
+                return chars(escape());
+
+            case '*':
+            case '+':
+            case '?':
+            case ')':
+                throw error("Unexpected " + c);
+            }
+
+            return chars(new int[] {c, c});
+        }
+
+        // chars
+        private int[] chars(int[] ranges)
+        {
+            int start = nfa.state();
+            int end = nfa.state();
+            nfa.edge(start, ranges, end);
+            return new int[] {start, end};
+        }
+
+        // set
+        //
+        // Parses a [] class, after the [
+        private int[] set()
+        {
+            boolean negate = peek('^');
+            if (negate)
+                index++;
+
+            List<Integer> list = new ArrayList<>();
+            boolean first = true;
+            while (first || !peek(']'))
+            {
+                if (index >= rule.length())
+                    throw error("Missing ]");
+
+                first = false;
+                char c = rule.charAt(index++);
+                if (c == '\\')
+                {
+                    for (int range: escape())
+                        list.add(range);
+                    continue;
+                }
+
+                char last = c;
+                if (peek('-') && index + 1 < rule.length() &&
+                    rule.charAt(index + 1) != ']')
+                {
+                    last = rule.charAt(index + 1);
+                    if (last == '\\')
+                        throw error("Escape in range");
+                    if (last < c)
+                        throw error("Bad range " + c + "-" + last);
+                    index += 2;
+                }
+
+                list.add((int) c);
+                list.add((int) last);
+            }
+
+            index++;
+            int[] ranges = new int[list.size()];
+            for (int i = 0; i < ranges.length; i++)
+                ranges[i] = list.get(i);
+
+            return negate? negate(ranges): ranges;
+        }
+
+        // escape
+        //
+        // Parses an escape, after the backslash
+        private int[] escape()
+        {
+            if (index >= rule.length())
+                throw error("Escape at end");
+
+            char c = rule.charAt(index++);
+            switch (c)
+            {
+            case 'd':
+                return DIGITS;
+
+            case 'w':
+                return WORDS;
+
+            case 's':
+                return SPACES;
+
+            case 'D':
+                return negate(DIGITS);
+
+            case 'W':
+                return negate(WORDS);
+
+            case 'S':
+                return negate(SPACES);
+
+            case 't':
+                return new int[] {'\t', '\t'};
+            }
+
+            return new int[] {c, c};
+        }
+
+        // negate
+        //
+        // Returns the chars not in the ranges
+        private static int[] negate(int[] ranges)
+        {
+            boolean[] in = new boolean[CHARS];
+            for (int i = 0; i < ranges.length; i += 2)
+                Arrays.fill(in, ranges[i], ranges[i + 1] + 1, true);
+
+            List<Integer> list = new ArrayList<>();
+            for (int c = 0; c < CHARS; c++)
+            {
+                if (in[c] || c == '\n')
+                    continue;
+
+                int last = c;
+                while (last + 1 < CHARS && !in[last + 1] &&
+                       last + 1 != '\n')
+                    last++;
+
+                list.add(c);
+                list.add(last);
+                c = last;
+            }
+
+            int[] result = new int[list.size()];
+            for (int i = 0; i < result.length; i++)
+                result[i] = list.get(i);
+
+            return result;
+        }
+
+        // peek
+        private boolean peek(char c)
+        {
+            return index < rule.length() && rule.charAt(index) == c;
+        }
+
+        // error
+        private IllegalArgumentException error(String message)
+        {
+            return new IllegalArgumentException(message + " at " + index +
+                                                " in " + rule);
+        }
+    }
+}
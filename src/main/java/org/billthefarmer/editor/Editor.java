@@ -27,11 +27,13 @@ import android.Manifest;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
 import android.graphics.Color;
 import android.graphics.Typeface;
 import android.net.Uri;
@@ -39,9 +41,12 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.Editable;
 import android.text.InputType;
+import android.text.Layout;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextPaint;
@@ -52,6 +57,7 @@ import android.text.style.BackgroundColorSpan;
 import android.text.style.ForegroundColorSpan;
 import android.util.Log;
 import android.view.ActionMode;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -65,6 +71,7 @@ import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.HorizontalScrollView;
@@ -83,25 +90,38 @@ import org.commonmark.parser.Parser;
 import org.commonmark.renderer.html.HtmlRenderer;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilterOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 
 import java.lang.ref.WeakReference;
 
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
 
 import java.text.DateFormat;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -109,13 +129,27 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 public class Editor extends Activity
 {
     public final static String TAG = "Editor";
 
+    // Highlight colours, in Lexer token type order
+    private final static int TOKEN_COLOURS[] =
+    {
+        Color.TRANSPARENT, Color.CYAN, Color.MAGENTA, Color.BLUE,
+        Color.YELLOW, Color.CYAN, Color.LTGRAY, Color.CYAN, Color.RED,
+        Color.RED, Color.CYAN, Color.MAGENTA, Color.MAGENTA, Color.BLUE,
+        Color.MAGENTA, Color.CYAN, Color.CYAN, Color.MAGENTA
+    };
+
     private Uri uri;
     private File file;
     private String path;
@@ -128,9 +162,27 @@ public class Editor extends Activity
     private ScrollView scrollView;
     private Runnable updateHighlight;
     private Runnable updateWordCount;
+    private QueryTextListener queryTextListener;
 
     private ScaleGestureDetector scaleDetector;
 
+    private PieceTable document = new PieceTable();
+    private LineIndex lines = new LineIndex();
+
+    private ReadTask readTask;
+    private ViewTask viewTask;
+    private FindTask findTask;
+    private ReplaceTask replaceTask;
+    private SaveTask saveTask;
+    private Journal journal;
+    private TrigramIndex index;
+    private boolean loading;
+
+    private MappedFile viewer;
+    private Deque<Integer> viewLengths;
+    private boolean paging;
+    private int page;
+
     private Map<String, Integer> pathMap;
     private List<String> removeList;
 
@@ -147,11 +199,41 @@ public class Editor extends Activity
 
     private long modified;
 
+    private int ending = TextDecoder.LF;
+    private boolean bom;
+    private long limit = Constants.TOO_LARGE;
+
     private int theme = Constants.LIGHT;
     private int size = Constants.MEDIUM;
     private int type = Constants.MONO;
 
     private int syntax;
+    private Lexer lexer;
+    private SyntaxRegistry registry;
+    private boolean grammars;
+    private TokenCache tokenCache = new TokenCache();
+    private HighlightTask highlightTask;
+    private int version;
+
+    // Tokens waiting to be applied, a slice of lines each frame
+    private Tokens spanTokens;
+    private int[] spanStarts;
+    private int[] spanSlices;
+    private int spanSlice;
+    private int spanVisible;
+    private int spanPrefetched;
+    private int spanVersion;
+    private boolean slicePending;
+
+    // Scrolling, in pixels per millisecond, and the part of the view
+    // highlighted, in pixels, and in the text
+    private int scrollY;
+    private long scrollTime;
+    private float scrollVelocity;
+    private int highlightTop;
+    private int highlightBottom;
+    private int highlightStart;
+    private int highlightEnd;
 
     // onCreate
     @Override
@@ -173,6 +255,10 @@ public class Editor extends Activity
 
         removeList = new ArrayList<>();
 
+        // Edits since each file was saved
+        journal = new Journal(new File(getFilesDir(),
+                                       Constants.JOURNAL_FOLDER));
+
         setTheme(getThemeId(theme));
         setContentView(getLayoutType());
 
@@ -212,6 +298,8 @@ public class Editor extends Activity
         theme = preferences.getInt(Constants.PREF_THEME, Constants.LIGHT);
         size = preferences.getInt(Constants.PREF_SIZE, Constants.MEDIUM);
         type = preferences.getInt(Constants.PREF_TYPE, Constants.MONO);
+
+        limit = preferences.getLong(Constants.PREF_LIMIT, Constants.TOO_LARGE);
     }
 
     private void setInputType() {
@@ -299,7 +387,7 @@ public class Editor extends Activity
                 @Override
                 public void afterTextChanged(Editable s)
                 {
-                    if (!changed)
+                    if (!changed && !loading && viewer == null)
                     {
                         changed = true;
                         invalidateOptionsMenu();
@@ -347,7 +435,34 @@ public class Editor extends Activity
                 public void onTextChanged(CharSequence s,
                                           int start,
                                           int before,
-                                          int count) {}
+                                          int count)
+                {
+                    // Any highlighting or match counting in progress
+                    // is out of date
+                    version++;
+                    if (queryTextListener != null)
+                        queryTextListener.cancelMatches();
+
+                    // Keep the document in step, and journal the edit
+                    if (document != null && !loading && viewer == null)
+                    {
+                        document.replace(start, start + before, s,
+                                         start, start + count);
+                        journal.record(start, before, s, start,
+                                       start + count);
+                    }
+
+                    // And the line index, which is built separately
+                    // while loading, and the cached tokens
+                    if (lines != null && !loading)
+                    {
+                        int line = lines.getLineForOffset(start);
+                        int total = lines.getLineCount();
+                        int added = lines.update(s, start, before, count);
+                        int removed = total + added - lines.getLineCount();
+                        tokenCache.update(line, removed, added);
+                    }
+                }
             });
 
             // onFocusChange
@@ -369,8 +484,8 @@ public class Editor extends Activity
             // onLongClick
             textView.setOnLongClickListener(v ->
             {
-                // Do nothing if already editable
-                if (edit)
+                // Do nothing if already editable, or viewing
+                if (edit || viewer != null)
                     return false;
 
                 // Get scroll position
@@ -457,25 +572,12 @@ public class Editor extends Activity
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
                 // onScrollChange
                 scrollView.setOnScrollChangeListener((v, x, y, oldX, oldY) ->
-                {
-                    if (updateHighlight != null)
-                    {
-                        textView.removeCallbacks(updateHighlight);
-                        textView.postDelayed(updateHighlight, Constants.UPDATE_DELAY);
-                    }
-                });
+                    scrollChanged());
 
             else
                 // onScrollChange
                 scrollView.getViewTreeObserver()
-                    .addOnScrollChangedListener(() ->
-                {
-                    if (updateHighlight != null)
-                    {
-                        textView.removeCallbacks(updateHighlight);
-                        textView.postDelayed(updateHighlight, Constants.UPDATE_DELAY);
-                    }
-                });
+                    .addOnScrollChangedListener(() -> scrollChanged());
         }
     }
 
@@ -503,6 +605,18 @@ public class Editor extends Activity
 
         checkHighlight();
 
+        // Reopen viewer
+        if (savedInstanceState.containsKey(Constants.PAGE))
+        {
+            viewFile((content != null)? content: uri,
+                     savedInstanceState.getInt(Constants.PAGE));
+            return;
+        }
+
+        // Carry on journalling
+        if (content == null)
+            journal.resume(path, file.length(), file.lastModified());
+
         if (file.lastModified() > modified)
             alertDialog(R.string.appName, R.string.changedReload,
                         R.string.reload, R.string.cancel, this::onClick);
@@ -515,6 +629,8 @@ public class Editor extends Activity
         match = savedInstanceState.getString(Constants.MATCH);
         modified = savedInstanceState.getLong(Constants.MODIFIED);
         content = savedInstanceState.getParcelable(Constants.CONTENT);
+        ending = savedInstanceState.getInt(Constants.ENDING);
+        bom = savedInstanceState.getBoolean(Constants.BOM);
     }
 
     // onPause
@@ -542,6 +658,7 @@ public class Editor extends Activity
         editor.putInt(Constants.PREF_THEME, theme);
         editor.putInt(Constants.PREF_SIZE, size);
         editor.putInt(Constants.PREF_TYPE, type);
+        editor.putLong(Constants.PREF_LIMIT, limit);
 
         // Add the set of recent files
         editor.putStringSet(Constants.PREF_PATHS, pathMap.keySet());
@@ -556,6 +673,9 @@ public class Editor extends Activity
 
         editor.apply();
 
+        // Write out the journal
+        journal.flush();
+
         // Save file
         if (changed && save)
             saveFile();
@@ -573,6 +693,11 @@ public class Editor extends Activity
         outState.putString(Constants.MATCH, match);
         outState.putBoolean(Constants.EDIT, edit);
         outState.putString(Constants.PATH, path);
+        outState.putInt(Constants.ENDING, ending);
+        outState.putBoolean(Constants.BOM, bom);
+
+        if (viewer != null)
+            outState.putInt(Constants.PAGE, page);
     }
 
     // onCreateOptionsMenu
@@ -598,14 +723,23 @@ public class Editor extends Activity
         {
             searchView.setSubmitButtonEnabled(true);
             searchView.setImeOptions(EditorInfo.IME_ACTION_GO);
-            searchView.setOnQueryTextListener(new QueryTextListener());
+            if (queryTextListener == null)
+                queryTextListener = new QueryTextListener();
+
+            searchView.setOnQueryTextListener(queryTextListener);
+            searchItem.setOnActionExpandListener(queryTextListener);
         }
 
         // Show find all item
         menu.findItem(R.id.findAll).setVisible(menu.findItem(R.id.search).isActionViewExpanded());
+        menu.findItem(R.id.findFolder).setVisible(menu.findItem(R.id.search).isActionViewExpanded() &&
+                                                  file != null && file.getParentFile() != null);
+        menu.findItem(R.id.replaceAll).setVisible(menu.findItem(R.id.search).isActionViewExpanded() &&
+                                                  viewer == null);
 
-        menu.findItem(R.id.edit).setVisible(!edit);
+        menu.findItem(R.id.edit).setVisible(!edit && viewer == null);
         menu.findItem(R.id.view).setVisible(edit);
+        menu.findItem(R.id.saveAs).setVisible(viewer == null);
 
         menu.findItem(R.id.save).setVisible(changed);
 
@@ -751,6 +885,12 @@ public class Editor extends Activity
         case R.id.findAll:
             findAll();
             break;
+        case R.id.findFolder:
+            findFolder();
+            break;
+        case R.id.replaceAll:
+            replaceAll();
+            break;
         case R.id.viewMarkdown:
             viewMarkdown();
             break;
@@ -809,7 +949,9 @@ public class Editor extends Activity
 
         // Close text search
         if (searchItem != null && searchItem.isActionViewExpanded() &&
-                item.getItemId() != R.id.findAll)
+                item.getItemId() != R.id.findAll &&
+                item.getItemId() != R.id.findFolder &&
+                item.getItemId() != R.id.replaceAll)
             searchItem.collapseActionView();
 
         return true;
@@ -831,6 +973,7 @@ public class Editor extends Activity
                 break;
             case DialogInterface.BUTTON_NEGATIVE:
                 changed = false;
+                journal.clear();
                 finish();
                 break;
             }
@@ -915,6 +1058,10 @@ public class Editor extends Activity
     // editClicked
     private void editClicked(MenuItem item)
     {
+        // Viewer is read only
+        if (viewer != null)
+            return;
+
         // Get scroll position
         int y = scrollView.getScrollY();
         // Get height
@@ -986,6 +1133,7 @@ public class Editor extends Activity
                 break;
 
             case DialogInterface.BUTTON_NEGATIVE:
+                journal.clear();
                 newFile(null);
                 break;
             }
@@ -1002,12 +1150,16 @@ public class Editor extends Activity
     // newFile
     private void newFile(String text)
     {
+        journal.stop();
+        closeViewer();
+        cancelRead();
+
         if (text != null)
-            textView.setText(text);
+            setDocument(new PieceTable(text));
 
         else
         {
-            textView.setText("");
+            setDocument(new PieceTable());
             changed = false;
         }
 
@@ -1015,9 +1167,22 @@ public class Editor extends Activity
         uri = Uri.fromFile(file);
         path = uri.getPath();
 
+        ending = TextDecoder.LF;
+        bom = false;
+
         setTitle(uri.getLastPathSegment());
         match = Constants.UTF_8;
         getActionBar().setSubtitle(match);
+
+        // Journal new text as an edit to an empty file
+        if (text != null)
+        {
+            journal.start(path, 0, 0);
+            journal.record(0, 0, text, 0, text.length());
+        }
+
+        else
+            startJournal();
     }
 
     // getNewFile
@@ -1079,6 +1244,25 @@ public class Editor extends Activity
         builder.show();
     }
 
+    // alertDialog
+    private void alertDialog(int title, String message,
+                             int positiveButton, int negativeButton,
+                             int neutralButton,
+                             DialogInterface.OnClickListener listener)
+    {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(title);
+        builder.setMessage(message);
+
+        // Add the buttons
+        builder.setPositiveButton(positiveButton, listener);
+        builder.setNegativeButton(negativeButton, listener);
+        builder.setNeutralButton(neutralButton, listener);
+
+        // Create the AlertDialog
+        builder.show();
+    }
+
     // alertDialog
     private void alertDialog(int title, String message, int neutralButton)
     {
@@ -1160,6 +1344,7 @@ public class Editor extends Activity
 
                 case DialogInterface.BUTTON_NEGATIVE:
                     changed = false;
+                    journal.clear();
                     readFile(uri);
                     break;
                 }
@@ -1256,12 +1441,102 @@ public class Editor extends Activity
 
     // findAll
     public void findAll()
+    {
+        // Search the recent files
+        List<File> entries = new ArrayList<>();
+        for (String path : pathMap.keySet())
+            entries.add(new File(path));
+
+        find(R.string.findAll, entries);
+    }
+
+    // findFolder
+    public void findFolder()
+    {
+        // Search the folder of the current file, and its folders
+        List<File> entries = new ArrayList<>();
+        entries.add(file.getParentFile());
+
+        find(R.string.findFolder, entries);
+    }
+
+    // find
+    private void find(int title, List<File> entries)
+    {
+        // Get search string
+        String search = searchView.getQuery().toString();
+
+        if (findTask != null)
+            findTask.cancel(true);
+
+        // Index of the files searched, read when first used
+        if (index == null)
+            index = new TrigramIndex(new File(getFilesDir(),
+                                              Constants.INDEX_FILE));
+
+        findTask = new FindTask(this, title, search);
+        findTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+                                   entries.toArray(new File[0]));
+    }
+
+    // replaceAll
+    private void replaceAll()
     {
         // Get search string
         String search = searchView.getQuery().toString();
 
-        FindTask findTask = new FindTask(this);
-        findTask.execute(search);
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.replaceAll);
+        builder.setMessage(search);
+
+        // Add the buttons
+        builder.setPositiveButton(R.string.replace, (dialog, id) ->
+        {
+            EditText text = ((Dialog) dialog).findViewById(R.id.replaceText);
+            replaceAll(search, text.getText().toString());
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+
+        // Create edit text
+        LayoutInflater inflater = (LayoutInflater) builder.getContext()
+            .getSystemService(LAYOUT_INFLATER_SERVICE);
+        View view = inflater.inflate(R.layout.replace, null);
+        builder.setView(view);
+
+        // Create the AlertDialog
+        builder.show();
+    }
+
+    // replaceAll
+    //
+    // Finds the replacements in the background, then makes them all
+    // in one edit
+    private void replaceAll(String search, String replacement)
+    {
+        Replace replace;
+        try
+        {
+            replace = Replace.compile(search, replacement);
+        }
+
+        catch (IllegalArgumentException e)
+        {
+            alertDialog(R.string.replaceAll, e.getMessage(),
+                        android.R.string.ok);
+            return;
+        }
+
+        if (replace == null)
+            return;
+
+        if (replaceTask != null)
+            replaceTask.cancel(true);
+
+        CharSequence text = (document != null)?
+            document.snapshot(): textView.getText().toString();
+
+        replaceTask = new ReplaceTask(this, replace, version);
+        replaceTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, text);
     }
 
     // viewMarkdown
@@ -1512,6 +1787,7 @@ public class Editor extends Activity
 
             case DialogInterface.BUTTON_NEGATIVE:
                 changed = false;
+                journal.clear();
                 getFile();
                 break;
             }
@@ -1755,14 +2031,43 @@ public class Editor extends Activity
         if (BuildConfig.DEBUG)
             Log.d(TAG, "Size " + size);
 
-        if (size > Constants.TOO_LARGE)
+        // Check soft limit, files too large to edit are only viewed.
+        // Edited text is held twice, by the text view and the
+        // document, so the limits are on twice the size.
+        long held = size * Constants.EDIT_COPIES;
+        if (held > limit && held <= Constants.VIEW_LARGE)
         {
             String large = getString(R.string.tooLarge);
             large = String.format(large, FileUtils.getReadableFileSize(size));
-            alertDialog(R.string.appName, large, R.string.ok);
+            alertDialog(R.string.appName, large, R.string.anyway,
+                        R.string.cancel, R.string.always, (dialog, id) ->
+            {
+                switch (id)
+                {
+                case DialogInterface.BUTTON_NEUTRAL:
+                    // Raise the limit
+                    limit = held;
+                    readFile(uri, size);
+                    break;
+
+                case DialogInterface.BUTTON_POSITIVE:
+                    readFile(uri, size);
+                    break;
+                }
+            });
             return;
         }
 
+        readFile(uri, size);
+    }
+
+    // readFile
+    private void readFile(Uri uri, long size)
+    {
+        closeViewer();
+        cancelRead();
+        journal.stop();
+
         // Stop highlighting
         textView.removeCallbacks(updateHighlight);
         textView.removeCallbacks(updateWordCount);
@@ -1803,10 +2108,23 @@ public class Editor extends Activity
             setTitle(uri.getLastPathSegment());
         }
 
-        textView.setText(R.string.loading);
+        // View very large files, allowing for the two copies
+        if (size * Constants.EDIT_COPIES > Constants.VIEW_LARGE)
+            viewFile(uri, 0);
+
+        else
+        {
+            textView.setText(R.string.loading);
 
-        ReadTask read = new ReadTask(this);
-        read.execute(uri);
+            // Read only until loaded, as text is appended as it
+            // arrives
+            textView.setRawInputType(InputType.TYPE_NULL);
+            loading = true;
+            lines = null;
+
+            readTask = new ReadTask(this, size);
+            readTask.execute(uri);
+        }
 
         changed = false;
         modified = file.lastModified();
@@ -1814,6 +2132,218 @@ public class Editor extends Activity
         invalidateOptionsMenu();
     }
 
+    // cancelRead
+    private void cancelRead()
+    {
+        if (readTask != null)
+            readTask.cancel(false);
+
+        // Index whatever was loaded, so it can be followed from here
+        if (loading)
+        {
+            lines = new LineIndex(textView.getText());
+            tokenCache.clear();
+        }
+
+        readTask = null;
+        loading = false;
+    }
+
+    // getCharset
+    //
+    // The detector may return ICU names the platform doesn't support,
+    // such as IBM424_rtl for the visual order variant of a charset, so
+    // try without the order, then fall back to the default
+    private static Charset getCharset(String name)
+    {
+        try
+        {
+            return Charset.forName(name);
+        }
+
+        catch (IllegalCharsetNameException | UnsupportedCharsetException e) {}
+
+        try
+        {
+            return Charset.forName(name.replaceFirst("_(rtl|ltr)$", ""));
+        }
+
+        catch (IllegalCharsetNameException | UnsupportedCharsetException e)
+        {
+            return Charset.defaultCharset();
+        }
+    }
+
+    // viewFile
+    //
+    // Detecting the charset and decoding the first pages is done in
+    // the background, read only and without a document until done
+    private void viewFile(Uri uri, int page)
+    {
+        closeViewer();
+
+        // Default UTF-8
+        if (match == null)
+            match = Constants.UTF_8;
+
+        document = null;
+        lines = null;
+        textView.setText(R.string.loading);
+        textView.setRawInputType(InputType.TYPE_NULL);
+        loading = true;
+        edit = false;
+        changed = false;
+
+        viewTask = new ViewTask(this, page,
+                                match.equals(getString(R.string.detect))?
+                                null: match);
+        viewTask.execute(uri);
+        invalidateOptionsMenu();
+    }
+
+    // viewed
+    private void viewed(ViewTask task, String text)
+    {
+        viewTask = null;
+        loading = false;
+
+        if (text == null)
+        {
+            setDocument(new PieceTable());
+            changed = false;
+            alertDialog(R.string.appName, task.exception.getMessage(),
+                        R.string.ok);
+            invalidateOptionsMenu();
+            return;
+        }
+
+        viewer = task.viewer;
+        page = task.page;
+        viewLengths = task.lengths;
+        match = task.match;
+        getActionBar().setSubtitle(match);
+
+        // Fill the window from page
+        document = new PieceTable();
+        textView.setText(text);
+        lines = new LineIndex(textView.getText());
+        tokenCache.clear();
+
+        textView.postDelayed(() -> scrollView.scrollTo(0, 0),
+                             Constants.POSITION_DELAY);
+        checkHighlight();
+        invalidateOptionsMenu();
+    }
+
+    // scrollViewer
+    //
+    // Slide the window of pages when the view gets near either end,
+    // decoding the next page in the background
+    private void scrollViewer()
+    {
+        Layout layout = textView.getLayout();
+        if (paging || layout == null)
+            return;
+
+        int y = scrollView.getScrollY();
+        int height = scrollView.getHeight();
+        int below = textView.getHeight() - y - height;
+
+        if (y < height && page > 0)
+        {
+            paging = true;
+            new PageTask(this, viewer, true).execute(page - 1);
+        }
+
+        else if (below < height &&
+                 page + viewLengths.size() < viewer.pages())
+        {
+            paging = true;
+            new PageTask(this, viewer, false)
+                .execute(page + viewLengths.size());
+        }
+    }
+
+    // paged
+    private void paged(PageTask task, String text)
+    {
+        Layout layout = textView.getLayout();
+        if (task.viewer != viewer || text == null || layout == null)
+        {
+            paging = false;
+            return;
+        }
+
+        // Keep the first visible line in the same place
+        int y = scrollView.getScrollY();
+        int line = layout.getLineForVertical(y);
+        int offset = layout.getLineStart(line);
+        int delta = y - layout.getLineTop(line);
+
+        Editable editable = textView.getEditableText();
+        if (task.before)
+        {
+            page--;
+            editable.insert(0, text);
+            viewLengths.addFirst(text.length());
+            offset += text.length();
+
+            if (viewLengths.size() > Constants.VIEW_PAGES)
+            {
+                int length = viewLengths.removeLast();
+                editable.delete(editable.length() - length,
+                                editable.length());
+            }
+        }
+
+        else
+        {
+            editable.append(text);
+            viewLengths.addLast(text.length());
+
+            if (viewLengths.size() > Constants.VIEW_PAGES)
+            {
+                int length = viewLengths.removeFirst();
+                editable.delete(0, length);
+                offset -= length;
+                page++;
+            }
+        }
+
+        // Scroll back to the same line once the view has resized
+        final int position = offset;
+        textView.post(() ->
+        {
+            Layout newLayout = textView.getLayout();
+            int newLine = newLayout.getLineForOffset(position);
+            scrollView.scrollTo(0, newLayout.getLineTop(newLine) + delta);
+            paging = false;
+        });
+    }
+
+    // closeViewer
+    private void closeViewer()
+    {
+        if (viewTask != null)
+            viewTask.cancel(false);
+        viewTask = null;
+
+        if (viewer == null)
+            return;
+
+        try
+        {
+            viewer.close();
+        }
+
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+
+        viewer = null;
+    }
+
     // resolveContent
     private Uri resolveContent(Uri uri)
     {
@@ -1844,6 +2374,10 @@ public class Editor extends Activity
     // saveFile
     private void saveFile()
     {
+        // Viewer is read only, and don't save a partial file
+        if (viewer != null || loading)
+            return;
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
         {
             if (checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
@@ -1860,14 +2394,21 @@ public class Editor extends Activity
         textView.removeCallbacks(updateHighlight);
         textView.removeCallbacks(updateWordCount);
 
-        if (file.lastModified() > modified)
+        // The file is changed by a save still being written, so don't
+        // ask about that
+        boolean saving = (saveTask != null && file.equals(saveTask.file));
+        if (!saving && file.lastModified() > modified)
+        {
+            // Take the save now, as the document may have changed by
+            // the time it's confirmed
+            SaveTask task = newSaveTask(file, null);
             alertDialog(R.string.appName, R.string.changedOverwrite,
                         R.string.overwrite, R.string.cancel, (dialog, id) ->
-        {
-            if (id == DialogInterface.BUTTON_POSITIVE) {
-                saveFile(file);
-            }
-        });
+            {
+                if (id == DialogInterface.BUTTON_POSITIVE)
+                    save(task);
+            });
+        }
 
         else
         {
@@ -1885,79 +2426,129 @@ public class Editor extends Activity
     // saveFile
     private void saveFile(File file)
     {
-        CharSequence text = textView.getText();
-        write(text, file);
+        save(file, null);
     }
 
     // saveFile
     private void saveFile(Uri uri)
     {
-        CharSequence text = textView.getText();
-        try (OutputStream outputStream =
-             getContentResolver().openOutputStream(uri, "rwt"))
-        {
-            write(text, outputStream);
-        }
+        save(null, uri);
+    }
 
-        catch (Exception e)
-        {
-            alertDialog(R.string.appName, e.getMessage(), R.string.ok);
-            e.printStackTrace();
-        }
+    // save
+    //
+    // Writes a snapshot of the document in the background, so a large
+    // file doesn't hold up the interface. The text, where to write it,
+    // and how, are all taken now, so the document or file can change
+    // before it's written. Saves are written one at a time, in order.
+    private void save(File file, Uri uri)
+    {
+        save(newSaveTask(file, uri));
     }
 
-    // write
-    private void write(CharSequence text, File file)
+    // save
+    private void save(SaveTask task)
     {
-        file.getParentFile().mkdirs();
+        // A save of the same file still waiting is out of date
+        if (saveTask != null && saveTask.isTarget(task.file, task.uri))
+            saveTask.superseded = true;
+
+        saveTask = task;
+        saveTask.executeOnExecutor(SaveTask.EXECUTOR);
+    }
 
+    // newSaveTask
+    private SaveTask newSaveTask(File file, Uri uri)
+    {
         String charset = Constants.UTF_8;
         if (match != null && !match.equals(getString(R.string.detect)))
             charset = match;
 
-        try (BufferedWriter writer = new BufferedWriter
-             (new OutputStreamWriter(new FileOutputStream(file), charset)))
+        CharSequence text = (document != null)?
+            document.snapshot(): textView.getText().toString();
+
+        return new SaveTask(this, text, file, uri, charset, bom, ending,
+                            version, journal.getSequence());
+    }
+
+    // saved
+    //
+    // Called when a save is done, with the exception if it failed
+    private void saved(SaveTask task, Exception e)
+    {
+        if (saveTask == task)
+            saveTask = null;
+
+        // Not written, as a later save of the same file was asked for
+        if (task.skipped)
+            return;
+
+        if (e != null)
         {
-            writer.append(text);
-            writer.flush();
+            // May be finishing, if saved on the way out
+            if (!isFinishing())
+                alertDialog(R.string.appName, e.getMessage(), R.string.ok);
         }
 
-        catch (Exception e)
+        else
         {
-            alertDialog(R.string.appName, e.getMessage(), R.string.ok);
-            e.printStackTrace();
-            return;
-        }
+            // Only if the text hasn't changed since
+            if (task.version == version)
+                changed = false;
 
-        changed = false;
-        invalidateOptionsMenu();
-        modified = file.lastModified();
-        savePath(file.getPath());
+            if (task.file != null && task.file.equals(file))
+            {
+                modified = file.lastModified();
+                savePath(file.getPath());
+
+                // Drop the edits that have been saved
+                journal.compact(task.sequence, path, file.length(),
+                                modified);
+            }
+
+            invalidateOptionsMenu();
+        }
     }
 
     // write
-    private void write(CharSequence text, OutputStream os)
+    private static void write(CharSequence text, Writer writer,
+                              boolean bom, int ending) throws IOException
     {
-        String charset = Constants.UTF_8;
-        if (match != null && !match.equals(getString(R.string.detect)))
-            charset = match;
+        // Put back the byte order mark
+        if (bom)
+            writer.write(TextDecoder.BOM);
 
-        try (BufferedWriter writer =
-             new BufferedWriter(new OutputStreamWriter(os, charset)))
-        {
-            writer.append(text);
-            writer.flush();
-        }
+        String separator = (ending == TextDecoder.CRLF)? "\r\n":
+            (ending == TextDecoder.CR)? "\r": null;
 
-        catch (Exception e)
+        // Copy in chunks, rather than converting the whole document
+        // to a string
+        char[] buffer = new char[Constants.BUFFER_SIZE];
+        for (int start = 0; start < text.length(); start += buffer.length)
         {
-            alertDialog(R.string.appName, e.getMessage(), R.string.ok);
-            e.printStackTrace();
-            return;
-        }
+            int end = Math.min(start + buffer.length, text.length());
+            TextUtils.getChars(text, start, end, buffer, 0);
 
-        changed = false;
-        invalidateOptionsMenu();
+            if (separator == null)
+                writer.write(buffer, 0, end - start);
+
+            // Put back the original line ends
+            else
+            {
+                int first = 0;
+                for (int i = 0; i < end - start; i++)
+                {
+                    if (buffer[i] == '\n')
+                    {
+                        writer.write(buffer, first, i - first);
+                        writer.write(separator);
+                        first = i + 1;
+                    }
+                }
+
+                writer.write(buffer, first, end - start - first);
+            }
+        }
     }
 
     // checkHighlight
@@ -1965,6 +2556,12 @@ public class Editor extends Activity
     {
         // No syntax
         syntax = Constants.NO_SYNTAX;
+        tokenCache.clear();
+        lexer = null;
+
+        // States depend on the lexer
+        if (lines != null)
+            lines.resetStates();
 
         // Check extension
         if (highlight && file != null)
@@ -1972,31 +2569,29 @@ public class Editor extends Activity
             String ext = FileUtils.getExtension(file.getName());
             if (ext != null)
             {
-                String type = FileUtils.getMimeType(file);
-
-                if (ext.matches(Constants.CC_EXT))
-                    syntax = Constants.CC_SYNTAX;
-
-                else if (ext.matches(Constants.HTML_EXT))
-                    syntax = Constants.HTML_SYNTAX;
+                SyntaxRegistry.Syntax found = findSyntax(file.getName(), ext);
 
-                else if (ext.matches(Constants.CSS_EXT))
-                    syntax = Constants.CSS_SYNTAX;
-
-                else if (ext.matches(Constants.ORG_EXT))
-                    syntax = Constants.ORG_SYNTAX;
-
-                else if (ext.matches(Constants.MD_EXT))
-                    syntax = Constants.MD_SYNTAX;
+                if (found != null)
+                {
+                    try
+                    {
+                        lexer = found.getLexer();
+                        syntax = found.getSyntax();
+                    }
 
-                else if (ext.matches(Constants.SH_EXT))
-                    syntax = Constants.SH_SYNTAX;
+                    catch (IllegalArgumentException e)
+                    {
+                        alertDialog(R.string.appName, e.getMessage(),
+                                    R.string.ok);
+                    }
+                }
 
-                else if (!Constants.TEXT_PLAIN.equals(type))
+                else if (!Constants.TEXT_PLAIN
+                         .equals(FileUtils.getMimeType(file)))
+                {
                     syntax = Constants.DEF_SYNTAX;
-
-                else
-                    syntax = Constants.NO_SYNTAX;
+                    lexer = registry.get(syntax).getLexer();
+                }
 
                 // Add callback
                 if (textView != null && syntax != Constants.NO_SYNTAX)
@@ -2022,6 +2617,82 @@ public class Editor extends Activity
         }
     }
 
+    // findSyntax
+    //
+    // Returns the syntax for the file name or extension, or for a
+    // shebang or modeline at the start of the text, or null. Grammars
+    // are only loaded if there is no built in syntax, in the
+    // background, and the syntax is checked again when they are.
+    private SyntaxRegistry.Syntax findSyntax(String name, String ext)
+    {
+        if (registry == null)
+            registry = new SyntaxRegistry();
+
+        SyntaxRegistry.Syntax found = registry.find(name, ext);
+        if (found == null && !grammars)
+            loadGrammars();
+
+        if (found == null && viewer == null && textView != null)
+            found = registry.sniff(textView.getText());
+
+        return found;
+    }
+
+    // loadGrammars
+    private void loadGrammars()
+    {
+        grammars = true;
+
+        GrammarTask grammarTask = new GrammarTask(this);
+        grammarTask.executeOnExecutor(HighlightTask.EXECUTOR);
+    }
+
+    // grammarsLoaded
+    private void grammarsLoaded(List<Grammar> list, List<String> errors)
+    {
+        for (Grammar grammar: list)
+            registry.add(grammar);
+
+        for (String error: errors)
+            alertDialog(R.string.appName, error, R.string.ok);
+
+        checkHighlight();
+    }
+
+    // scrollChanged
+    private void scrollChanged()
+    {
+        if (viewer != null)
+            scrollViewer();
+
+        // Follow the scroll speed and direction
+        int y = scrollView.getScrollY();
+        long time = SystemClock.uptimeMillis();
+        if (time > scrollTime)
+            scrollVelocity = (float) (y - scrollY) / (time - scrollTime);
+        scrollY = y;
+        scrollTime = time;
+
+        // Highlight the matches in view
+        if (queryTextListener != null)
+            queryTextListener.updateMatches();
+
+        if (updateHighlight != null)
+        {
+            textView.removeCallbacks(updateHighlight);
+
+            // Highlight now if scrolled past the highlighted part,
+            // rather than waiting for scrolling to stop
+            if (highlightTask == null &&
+                (y < highlightTop ||
+                 y + scrollView.getHeight() > highlightBottom))
+                textView.post(updateHighlight);
+
+            else
+                textView.postDelayed(updateHighlight, Constants.UPDATE_DELAY);
+        }
+    }
+
     // highlightText
     private void highlightText()
     {
@@ -2045,499 +2716,322 @@ public class Editor extends Activity
         if (textView.getSelectionStart() > end)
             textView.setSelection(last);
 
+        // Scrolling has stopped if it hasn't moved since the last
+        // update was scheduled
+        if (SystemClock.uptimeMillis() - scrollTime >= Constants.UPDATE_DELAY)
+            scrollVelocity = 0;
+
+        // Prefetch a screen ahead in the direction of scrolling, or
+        // two if flinging
+        int ahead = (Math.abs(scrollVelocity) > Constants.FLING_VELOCITY)?
+            height * 2: height;
+        int aheadTop = (scrollVelocity < 0)? Math.max(top - ahead, 0): top;
+        int aheadBottom = (scrollVelocity < 0)?
+            top + height: top + height + ahead;
+
+        int aheadStart = textView.getLayout().getLineStart
+            (textView.getLayout().getLineForVertical(aheadTop));
+        int aheadEnd = textView.getLayout().getLineEnd
+            (textView.getLayout().getLineForVertical(aheadBottom));
+
+        // Highlight whole text lines, not screen lines, so a wrapped
+        // line is matched the same wherever the screen starts
+        if (lines != null)
+        {
+            start = lines.getLineStart(lines.getLineForOffset(start));
+            end = lines.getLineEnd(lines.getLineForOffset(end));
+        }
+
         // Get editable
         Editable editable = textView.getEditableText();
 
-        // Get current spans
-        ForegroundColorSpan[] spans =
-            editable.getSpans(start, end, ForegroundColorSpan.class);
-        // Remove spans
-        for (ForegroundColorSpan span: spans)
-            editable.removeSpan(span);
-
-        Matcher matcher;
-
-        switch (syntax)
+        // Remove all spans
+        if (syntax == Constants.NO_SYNTAX)
         {
-        case Constants.NO_SYNTAX:
-            // Get current spans
-            spans = editable.getSpans(0, editable.length(),
-                                      ForegroundColorSpan.class);
-            // Remove spans
+            spanTokens = null;
+            ForegroundColorSpan[] spans =
+                editable.getSpans(0, editable.length(),
+                                  ForegroundColorSpan.class);
             for (ForegroundColorSpan span: spans)
                 editable.removeSpan(span);
-            break;
+            return;
+        }
 
-        case Constants.CC_SYNTAX:
-            matcher = Constants.KEYWORDS.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+        // No line index until loaded
+        if (loading || lines == null)
+            return;
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        // Visible lines, and the lines to prefetch, limited to
+        // PREFETCH_LINES
+        int visibleFirst = lines.getLineForOffset(start);
+        int visibleLast = lines.getLineForOffset(Math.max(start, end - 1));
+        int firstLine = Math.max(lines.getLineForOffset(aheadStart),
+                                 visibleFirst - Constants.PREFETCH_LINES);
+        int lastLine = Math.min(lines.getLineForOffset(aheadEnd),
+                                visibleLast + Constants.PREFETCH_LINES);
+        firstLine = Math.min(firstLine, visibleFirst);
+        lastLine = Math.max(lastLine, visibleLast);
+
+        // Copy the line starts for the region, as the index will
+        // change as the text is edited
+        int[] starts = new int[lastLine - firstLine + 2];
+        for (int i = 0; i < starts.length - 1; i++)
+            starts[i] = lines.getLineStart(firstLine + i);
+        starts[starts.length - 1] = lines.getLineEnd(lastLine);
+
+        // Start from the last line with a known lexer state, which is
+        // usually the first line
+        int from = Math.min(firstLine, lines.getValidLines() - 1);
+
+        // Lex a snapshot in the background
+        CharSequence text = (viewer == null && document != null)?
+            document.snapshot(): editable.toString();
+
+        if (highlightTask != null)
+            highlightTask.cancel(false);
+
+        highlightTask = new HighlightTask(this, version, firstLine, starts,
+                                          visibleFirst - firstLine,
+                                          visibleLast - firstLine + 1,
+                                          from, lines.getLineStart(from),
+                                          lines.getState(from));
+        highlightTask.executeOnExecutor(HighlightTask.EXECUTOR, text);
+    }
 
-            matcher.region(start, end).usePattern(Constants.TYPES);
-            while (matcher.find())
+    // scheduleTokens
+    //
+    // Applies the tokens for the lines in starts over the next few
+    // frames, a slice at a time, the visible lines first
+    private void scheduleTokens(Tokens tokens, int[] starts,
+                                int first, int last)
+    {
+        int lines = starts.length - 1;
+        int count = (lines + Constants.SLICE_LINES - 1) /
+            Constants.SLICE_LINES + 2;
+        int[] slices = new int[count * 2];
+        int n = 0;
+
+        // Visible lines, then the lines below, then the lines above,
+        // working outwards, so the part highlighted is always in one
+        // piece
+        int[] order = {first, last, last, lines};
+        for (int i = 0; i < order.length; i += 2)
+        {
+            for (int line = order[i]; line < order[i + 1];
+                 line += Constants.SLICE_LINES)
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                slices[n++] = line;
+                slices[n++] = Math.min(line + Constants.SLICE_LINES,
+                                       order[i + 1]);
             }
+        }
 
-            matcher.region(start, end).usePattern(Constants.CLASS);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.BLUE);
+        for (int line = first; line > 0; line -= Constants.SLICE_LINES)
+        {
+            slices[n++] = Math.max(line - Constants.SLICE_LINES, 0);
+            slices[n++] = line;
+        }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        spanTokens = tokens;
+        spanStarts = starts;
+        spanSlices = Arrays.copyOf(slices, n);
+        spanSlice = 0;
+        spanVisible = (last - first + Constants.SLICE_LINES - 1) /
+            Constants.SLICE_LINES * 2;
+        spanPrefetched = 0;
+        spanVersion = version;
 
-            matcher.region(start, end).usePattern(Constants.NUMBER);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.YELLOW);
+        highlightStart = starts[first];
+        highlightEnd = starts[first];
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        applySlices();
+    }
 
-            matcher.region(start, end).usePattern(Constants.ANNOTATION);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+    // applySlices
+    //
+    // Applies slices until the frame budget is used up, then waits
+    // for the next frame
+    private void applySlices()
+    {
+        slicePending = false;
+        long deadline = System.nanoTime() + Constants.FRAME_BUDGET;
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        while (spanTokens != null && spanVersion == version &&
+               spanSlice < spanSlices.length)
+        {
+            int start = spanStarts[spanSlices[spanSlice++]];
+            int end = spanStarts[spanSlices[spanSlice++]];
 
-            matcher.region(start, end).usePattern(Constants.CONSTANT);
-            while (matcher.find())
+            // Stop prefetching when there are too many spans
+            if (spanSlice > spanVisible)
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.LTGRAY);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                spanPrefetched += spanTokens.search(end) -
+                    spanTokens.search(start);
+                if (spanPrefetched > Constants.PREFETCH_SPANS)
+                    break;
             }
 
-            matcher.region(start, end).usePattern(Constants.OPERATOR);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+            applyTokens(spanTokens, start, end);
+            highlighted(start, end);
 
-            matcher.region(start, end).usePattern(Constants.CC_COMMENT);
-            while (matcher.find())
+            if (System.nanoTime() > deadline &&
+                spanSlice < spanSlices.length)
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                scheduleSlices();
+                return;
             }
-            break;
+        }
 
-        case Constants.HTML_SYNTAX:
-            matcher = Constants.HTML_TAGS.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+        spanTokens = null;
+    }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+    // highlighted
+    //
+    // Records the part of the text highlighted so far, which grows out
+    // from the visible lines, so scrolling past it highlights at once
+    private void highlighted(int start, int end)
+    {
+        highlightStart = Math.min(highlightStart, start);
+        highlightEnd = Math.max(highlightEnd, end);
 
-            matcher.region(start, end).usePattern(Constants.HTML_ATTRS);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
+        Layout layout = textView.getLayout();
+        if (layout == null)
+            return;
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        highlightTop = layout.getLineTop
+            (layout.getLineForOffset(highlightStart));
+        highlightBottom = layout.getLineBottom
+            (layout.getLineForOffset(highlightEnd));
+    }
 
-            matcher.region(start, end).usePattern(Constants.QUOTED);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
+    // scheduleSlices
+    private void scheduleSlices()
+    {
+        if (slicePending)
+            return;
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        slicePending = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            Choreographer.getInstance()
+                .postFrameCallback(frameTime -> applySlices());
 
-            matcher.region(start, end).usePattern(Constants.HTML_COMMENT);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
+        else
+            textView.postDelayed(this::applySlices, Constants.FRAME_DELAY);
+    }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            break;
+    // applyTokens
+    //
+    // Changes the spans between start and end to match the tokens,
+    // leaving spans that already match alone
+    private void applyTokens(Tokens tokens, int start, int end)
+    {
+        Editable editable = textView.getEditableText();
+        ForegroundColorSpan[] spans =
+            editable.getSpans(start, end, ForegroundColorSpan.class);
 
-        case Constants.CSS_SYNTAX:
-            matcher = Constants.CSS_STYLES.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+        // Sort the spans, to compare with the tokens in order
+        Arrays.sort(spans, (a, b) ->
+        {
+            int order = editable.getSpanStart(a) - editable.getSpanStart(b);
+            return (order != 0)? order:
+                editable.getSpanEnd(a) - editable.getSpanEnd(b);
+        });
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        int i = tokens.search(start);
+        int last = tokens.search(end);
+        for (ForegroundColorSpan span: spans)
+        {
+            int spanStart = editable.getSpanStart(span);
+            int spanEnd = editable.getSpanEnd(span);
+
+            // Only touching the region
+            if (spanEnd <= start || spanStart >= end)
+                continue;
+
+            // Add new tokens before this span
+            while (i < last &&
+                   (tokens.getStart(i) < spanStart ||
+                    tokens.getStart(i) == spanStart &&
+                    tokens.getEnd(i) < spanEnd))
+                setSpan(editable, tokens, i++);
+
+            // Keep it if it matches, else remove it
+            if (i < last &&
+                tokens.getStart(i) == spanStart &&
+                tokens.getEnd(i) == spanEnd &&
+                TOKEN_COLOURS[tokens.getType(i)] == span.getForegroundColor())
+                i++;
 
-            matcher.region(start, end).usePattern(Constants.CSS_HEX);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
+            else
+                editable.removeSpan(span);
+        }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        // Add the rest
+        while (i < last)
+            setSpan(editable, tokens, i++);
+    }
 
-            matcher.region(start, end).usePattern(Constants.CC_COMMENT);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
+    // setSpan
+    private void setSpan(Editable editable, Tokens tokens, int index)
+    {
+        ForegroundColorSpan span = new
+            ForegroundColorSpan(TOKEN_COLOURS[tokens.getType(index)]);
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            break;
+        // Highlight it
+        editable.setSpan(span, tokens.getStart(index), tokens.getEnd(index),
+                         Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
 
-        case Constants.ORG_SYNTAX:
-            matcher = Constants.ORG_HEADER.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.BLUE);
+    // wordCountText
+    private void wordCountText()
+    {
+        int words = 0;
+        Matcher matcher = Constants.WORD_PATTERN.matcher(textView.getText());
+        while (matcher.find())
+        {
+            words++;
+        }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        if (customView != null)
+        {
+            String string = String.format(Locale.getDefault(), "%d\n%d",
+                                          words, textView.length());
+            customView.setText(string);
+        }
+    }
 
+    // onActionModeStarted
+    @Override
+    public void onActionModeStarted(ActionMode mode)
+    {
+        super.onActionModeStarted(mode);
 
-            matcher.region(start, end).usePattern(Constants.ORG_EMPH);
-            while (matcher.find())
+        // If there's a file
+        if (file != null)
+        {
+            // Get the mime type
+            String type = FileUtils.getMimeType(file);
+            // If the type is not text/plain
+            if (!Constants.TEXT_PLAIN.equals(type))
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+                // Get the start and end of the selection
+                int start = textView.getSelectionStart();
+                int end = textView.getSelectionEnd();
+                // And the text
+                CharSequence text = textView.getText();
 
-            matcher.region(start, end).usePattern(Constants.ORG_LINK);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+                // Get a pattern and a matcher for delimiter
+                // characters
+                Matcher matcher = Constants.PATTERN_CHARS.matcher(text);
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+                // Find the first match after the end of the selection
+                if (matcher.find(end))
+                {
+                    // Update the selection end
+                    end = matcher.start();
 
-            matcher.region(start, end).usePattern(Constants.ORG_COMMENT);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            break;
-
-        case Constants.MD_SYNTAX:
-            matcher = Constants.MD_HEADER.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.BLUE);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.MD_LINK);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.MD_EMPH);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.MD_CODE);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            break;
-
-        case Constants.SH_SYNTAX:
-            matcher = Constants.KEYWORDS.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.NUMBER);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.YELLOW);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.CONSTANT);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.LTGRAY);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.SH_VAR);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.OPERATOR);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.QUOTED);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.SH_COMMENT);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            break;
-
-        case Constants.DEF_SYNTAX:
-            matcher = Constants.KEYWORDS.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.TYPES);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.CLASS);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.BLUE);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.NUMBER);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.YELLOW);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.CONSTANT);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.LTGRAY);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-
-            matcher.region(start, end).usePattern(Constants.QUOTED);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            break;
-        }
-    }
-
-    // wordCountText
-    private void wordCountText()
-    {
-        int words = 0;
-        Matcher matcher = Constants.WORD_PATTERN.matcher(textView.getText());
-        while (matcher.find())
-        {
-            words++;
-        }
-
-        if (customView != null)
-        {
-            String string = String.format(Locale.getDefault(), "%d\n%d",
-                                          words, textView.length());
-            customView.setText(string);
-        }
-    }
-
-    // onActionModeStarted
-    @Override
-    public void onActionModeStarted(ActionMode mode)
-    {
-        super.onActionModeStarted(mode);
-
-        // If there's a file
-        if (file != null)
-        {
-            // Get the mime type
-            String type = FileUtils.getMimeType(file);
-            // If the type is not text/plain
-            if (!Constants.TEXT_PLAIN.equals(type))
-            {
-                // Get the start and end of the selection
-                int start = textView.getSelectionStart();
-                int end = textView.getSelectionEnd();
-                // And the text
-                CharSequence text = textView.getText();
-
-                // Get a pattern and a matcher for delimiter
-                // characters
-                Matcher matcher = Constants.PATTERN_CHARS.matcher(text);
-
-                // Find the first match after the end of the selection
-                if (matcher.find(end))
-                {
-                    // Update the selection end
-                    end = matcher.start();
-
-                    // Get the matched char
-                    char c = text.charAt(end);
+                    // Get the matched char
+                    char c = text.charAt(end);
 
                     // Check for opening brackets
                     if (Constants.BRACKET_CHARS.indexOf(c) == -1)
@@ -2563,14 +3057,22 @@ public class Editor extends Activity
                             break;
                         }
 
-                        String string = text.toString();
-                        // Do reverse search
-                        start = string.lastIndexOf(c, start) + 1;
+                        // No line index while loading
+                        if (lines == null)
+                            return;
+
+                        // Do reverse search, which can't go past
+                        // the start of the line
+                        int line =
+                            lines.getLineStart(lines.getLineForOffset(end));
+                        int index = start;
+                        while (index >= line && text.charAt(index) != c)
+                            index--;
 
                         // Check for included newline
-                        if (start > string.lastIndexOf('\n', end))
+                        if (index >= line)
                             // Update selection
-                            textView.setSelection(start, end);
+                            textView.setSelection(index + 1, end);
                     }
                 }
             }
@@ -2741,12 +3243,27 @@ public class Editor extends Activity
             recreate(this);
     }
 
+    // setDocument
+    private void setDocument(PieceTable table)
+    {
+        // Copied in bulk into the editable, so don't mirror it
+        document = null;
+        lines = null;
+        textView.setText(table);
+        document = table;
+        lines = new LineIndex(table);
+        tokenCache.clear();
+    }
+
     // loadText
-    private void loadText(CharSequence text)
+    private void loadText(PieceTable text)
     {
-        if (textView != null)
-            textView.setText(text);
+        // The text has already been streamed into the view, so just
+        // take it as the document
+        document = text;
 
+        readTask = null;
+        loading = false;
         changed = false;
 
         // Check for saved position
@@ -2765,318 +3282,1438 @@ public class Editor extends Activity
         // Check highlighting
         checkHighlight();
 
-        // Set read only
-        if (view)
-        {
-            textView.setRawInputType(InputType.TYPE_NULL);
+        // Set read only
+        if (view)
+        {
+            textView.setRawInputType(InputType.TYPE_NULL);
+
+            // Update boolean
+            edit = false;
+        }
+
+        else
+        {
+            // Set editable with or without suggestions
+            if (suggest)
+                textView.setInputType(InputType.TYPE_CLASS_TEXT |
+                                      InputType.TYPE_TEXT_FLAG_MULTI_LINE);
+            else
+                textView.setInputType(InputType.TYPE_CLASS_TEXT |
+                                      InputType.TYPE_TEXT_FLAG_MULTI_LINE |
+                                      InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS);
+
+            // Change typeface temporarily as workaround for yet another
+            // obscure feature of some versions of android
+            textView.setTypeface((type == Constants.NORMAL)?
+                                 Typeface.MONOSPACE:
+                                 Typeface.DEFAULT, Typeface.NORMAL);
+            textView.setTypeface((type == Constants.NORMAL)?
+                                 Typeface.DEFAULT:
+                                 Typeface.MONOSPACE, Typeface.NORMAL);
+            // Update boolean
+            edit = true;
+        }
+
+        // Dismiss keyboard
+        textView.clearFocus();
+
+        // Update menu
+        invalidateOptionsMenu();
+
+        // Put back any edits lost last time
+        startJournal();
+    }
+
+    // startJournal
+    //
+    // Replays the edits to the file that weren't saved, if any, then
+    // journals the edits from here. The journal is read on its own
+    // thread, and if the text is edited before it has been, it is
+    // started again with the text as it is instead.
+    private void startJournal()
+    {
+        if (viewer != null || content != null)
+        {
+            journal.clear();
+            return;
+        }
+
+        String path = this.path;
+        int version = this.version;
+        int loaded = textView.length();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        journal.recover(path, length, lastModified, (edits) ->
+            runOnUiThread(() ->
+            {
+                if (isFinishing() || viewer != null || content != null ||
+                    !path.equals(this.path))
+                    return;
+
+                if (version == this.version)
+                {
+                    startJournal(edits, length, lastModified);
+                    return;
+                }
+
+                // Journal the text as edited since it was loaded, as
+                // the edits recovered no longer apply
+                Editable editable = textView.getEditableText();
+                journal.start(path, length, lastModified);
+                journal.record(0, loaded, editable, 0, editable.length());
+                journal.flush();
+            }));
+    }
+
+    // startJournal
+    private void startJournal(List<Journal.Edit> edits, long length,
+                              long lastModified)
+    {
+        journal.start(path, length, lastModified);
+        if (edits == null || edits.isEmpty())
+            return;
+
+        // The edits are journalled again as they are made
+        Editable editable = textView.getEditableText();
+        for (Journal.Edit edit : edits)
+        {
+            int end = edit.getOffset() + edit.getDeleted();
+            if (end > editable.length())
+                break;
+
+            editable.replace(edit.getOffset(), end, edit.getText());
+        }
+
+        journal.flush();
+        alertDialog(R.string.appName, getString(R.string.recovered),
+                    R.string.ok);
+    }
+
+    private void onClick(DialogInterface dialog, int id) {
+        if (id == DialogInterface.BUTTON_POSITIVE) {
+            readFile(uri);
+        }
+    }
+
+    // QueryTextListener
+    //
+    // Finds the query as it is typed, and counts and highlights all
+    // the matches in the background
+    private class QueryTextListener
+        implements SearchView.OnQueryTextListener,
+        MenuItem.OnActionExpandListener
+    {
+        private final static int MATCH_COLOUR = 0x60ffff00;
+
+        private final BackgroundColorSpan span = new
+            BackgroundColorSpan(Color.YELLOW);
+        private final TypeAhead typeAhead =
+            new TypeAhead(Constants.SEARCH_TIMEOUT);
+        private Editable editable;
+        private Search search;
+        private int index;
+        private int next;
+        private int height;
+
+        // All the matches found so far, up to MATCH_LIMIT of them,
+        // and the spans showing the visible ones
+        private final List<BackgroundColorSpan> matchSpans =
+            new ArrayList<>();
+        private MatchTask matchTask;
+        private int[] matchStarts = new int[0];
+        private int[] matchEnds = new int[0];
+        private int matchCount;
+        private int matchTotal;
+        private int matchVersion;
+        private int spanFirst;
+        private int spanLast;
+
+        // onQueryTextChange
+        @Override
+        public boolean onQueryTextChange(String newText)
+        {
+            // Use literal or regex search and spannable for highlighting
+            height = scrollView.getHeight();
+            editable = textView.getEditableText();
+
+            // Reset the index and clear highlighting
+            if (newText.length() == 0)
+            {
+                index = 0;
+                typeAhead.clear();
+                editable.removeSpan(span);
+                clearMatches();
+                return false;
+            }
+
+            // Find text, carrying on from the last query
+            boolean found;
+            try
+            {
+                found = typeAhead.find(editable, version, newText, index);
+            }
+
+            catch (Search.TimedOutException e)
+            {
+                timedOut(e);
+                return false;
+            }
+
+            // Check pattern
+            search = typeAhead.getSearch();
+            if (search == null)
+            {
+                cancelMatches();
+                return false;
+            }
+
+            // Count and highlight all the matches
+            countMatches(newText);
+
+            if (found)
+            {
+                // Get index
+                index = typeAhead.start();
+                next = typeAhead.next();
+
+                // Check layout
+                if (textView.getLayout() == null)
+                    return false;
+
+                // Get text position
+                int line = textView.getLayout().getLineForOffset(index);
+                int pos = textView.getLayout().getLineBaseline(line);
+
+                // Scroll to it
+                scrollView.smoothScrollTo(0, pos - height / 2);
+
+                // Highlight it
+                editable.setSpan(span, typeAhead.start(), typeAhead.end(),
+                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+
+            else
+            {
+                index = 0;
+                next = 0;
+            }
+
+            showMatches();
+            return true;
+        }
+
+        // onQueryTextSubmit
+        @Override
+        public boolean onQueryTextSubmit(String query)
+        {
+            if (search == null)
+                return false;
+
+            // Find next text
+            boolean found;
+            try
+            {
+                found = search.find(editable, next, editable.length());
+            }
+
+            catch (Search.TimedOutException e)
+            {
+                timedOut(e);
+                return false;
+            }
+
+            if (found)
+            {
+                // Get index
+                index = search.start();
+                next = search.next();
+
+                // Get text position
+                int line = textView.getLayout().getLineForOffset(index);
+                int pos = textView.getLayout().getLineBaseline(line);
+
+                // Scroll to it
+                scrollView.smoothScrollTo(0, pos - height / 2);
+
+                // Highlight it
+                editable.setSpan(span, search.start(), search.end(),
+                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+
+            else
+            {
+                index = 0;
+                next = 0;
+            }
+
+            showMatches();
+            return true;
+        }
+
+        // onMenuItemActionExpand
+        @Override
+        public boolean onMenuItemActionExpand(MenuItem item)
+        {
+            return true;
+        }
+
+        // onMenuItemActionCollapse
+        @Override
+        public boolean onMenuItemActionCollapse(MenuItem item)
+        {
+            if (editable != null)
+                editable.removeSpan(span);
+
+            typeAhead.clear();
+            clearMatches();
+            return true;
+        }
+
+        // timedOut
+        //
+        // Drops a search that took too long, and says so
+        private void timedOut(Search.TimedOutException e)
+        {
+            typeAhead.clear();
+            search = null;
+            index = 0;
+            next = 0;
+            editable.removeSpan(span);
+            cancelMatches();
+
+            if (customView != null)
+                customView.setText((e instanceof Search.BusyException)?
+                                   R.string.searchRunning: R.string.timedOut);
+        }
+
+        // countMatches
+        //
+        // Starts counting the matches in a snapshot of the text
+        private void countMatches(String query)
+        {
+            cancelMatches();
+            matchVersion = version;
+
+            CharSequence text = (viewer == null && document != null)?
+                document.snapshot(): editable.toString();
+
+            matchTask = new MatchTask(Editor.this, query, version);
+            matchTask.executeOnExecutor(MatchTask.EXECUTOR, text);
+        }
+
+        // cancelMatches
+        //
+        // Stops counting, and removes the match highlighting
+        private void cancelMatches()
+        {
+            if (matchTask != null)
+                matchTask.cancel(true);
+
+            matchTask = null;
+            matchCount = 0;
+            matchTotal = 0;
+            setMatchSpans(0, 0);
+        }
+
+        // clearMatches
+        //
+        // Cancels the matches, and puts the word count back
+        private void clearMatches()
+        {
+            cancelMatches();
+            wordCountText();
+        }
+
+        // addMatches
+        //
+        // Adds a batch of matches, start and end pairs, from the task
+        private void addMatches(int[] batch)
+        {
+            int count = Math.min(batch.length / 2,
+                                 Constants.MATCH_LIMIT - matchCount);
+            if (matchCount + count > matchStarts.length)
+            {
+                int size = Math.min(Math.max(matchStarts.length * 2,
+                                             matchCount + count),
+                                    Constants.MATCH_LIMIT);
+                matchStarts = Arrays.copyOf(matchStarts, size);
+                matchEnds = Arrays.copyOf(matchEnds, size);
+            }
+
+            for (int i = 0; i < count; i++)
+            {
+                matchStarts[matchCount] = batch[i * 2];
+                matchEnds[matchCount++] = batch[i * 2 + 1];
+            }
+
+            matchTotal += batch.length / 2;
+            showMatches();
+            updateMatches();
+        }
+
+        // matchesDone
+        //
+        // Keeps the matches found if counting took too long, and says
+        // so
+        private void matchesDone(boolean timedOut, boolean busy)
+        {
+            matchTask = null;
+            showMatches();
+
+            if (timedOut && customView != null)
+                customView.setText(busy? getString(R.string.searchRunning):
+                                   getString(R.string.matchesTimedOut,
+                                             matchTotal));
+        }
+
+        // showMatches
+        //
+        // Shows which match is the current one, and how many there
+        // are, such as 12 / 3,481
+        private void showMatches()
+        {
+            if (customView == null || search == null)
+                return;
+
+            int match = Arrays.binarySearch(matchStarts, 0, matchCount, index);
+            String string = (match >= 0)?
+                String.format(Locale.getDefault(), "%,d / %,d",
+                              match + 1, matchTotal):
+                String.format(Locale.getDefault(), "%,d", matchTotal);
+            customView.setText(string);
+        }
+
+        // updateMatches
+        //
+        // Highlights the matches in view, up to MATCH_SPANS of them
+        private void updateMatches()
+        {
+            Layout layout = textView.getLayout();
+            if (layout == null || matchVersion != version)
+                return;
+
+            int top = scrollView.getScrollY();
+            int start = layout.getLineStart
+                (layout.getLineForVertical(top));
+            int end = layout.getLineEnd
+                (layout.getLineForVertical(top + scrollView.getHeight()));
+
+            int first = Arrays.binarySearch(matchStarts, 0, matchCount, start);
+            if (first < 0)
+                first = -first - 1;
+
+            int last = first;
+            while (last < matchCount && last - first < Constants.MATCH_SPANS &&
+                   matchStarts[last] < end)
+                last++;
+
+            setMatchSpans(first, last);
+        }
+
+        // setMatchSpans
+        //
+        // Highlights the matches from first up to last, reusing the
+        // spans
+        private void setMatchSpans(int first, int last)
+        {
+            if (first == spanFirst && last == spanLast)
+                return;
+
+            spanFirst = first;
+            spanLast = last;
+
+            Editable text = textView.getEditableText();
+            for (int i = 0; i < matchSpans.size(); i++)
+                text.removeSpan(matchSpans.get(i));
+
+            for (int i = first; i < last; i++)
+            {
+                if (i - first == matchSpans.size())
+                    matchSpans.add(new BackgroundColorSpan(MATCH_COLOUR));
+
+                text.setSpan(matchSpans.get(i - first), matchStarts[i],
+                             matchEnds[i], Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+    }
+
+    // ScaleListener
+    private class ScaleListener
+        extends ScaleGestureDetector.SimpleOnScaleGestureListener
+    {
+        // onScale
+        @Override
+        public boolean onScale(ScaleGestureDetector detector)
+        {
+            size *= detector.getScaleFactor();
+            size = Math.max(Constants.TINY, Math.min(size, Constants.HUGE));
+            textView.setTextSize(size);
+            invalidateOptionsMenu();
+
+            return true;
+        }
+    }
+
+    // FindTask
+    //
+    // Shows a dialog at once, and adds the files that match as they
+    // are found. Dismissing the dialog stops the search.
+    private static class FindTask
+            extends AsyncTask<File, File, Integer>
+    {
+        private final WeakReference<Editor> editorWeakReference;
+        private final int title;
+        private final String search;
+        private final TrigramIndex index;
+        private FileFinder finder;
+
+        private final List<File> matchList = new ArrayList<>();
+        private ArrayAdapter<String> adapter;
+        private AlertDialog dialog;
+
+        // FindTask
+        public FindTask(Editor editor, int title, String search)
+        {
+            editorWeakReference = new WeakReference<>(editor);
+            this.title = title;
+            this.search = search;
+            index = editor.index;
+        }
+
+        // onPreExecute
+        @Override
+        protected void onPreExecute()
+        {
+            final Editor editor = editorWeakReference.get();
+            if (editor == null)
+                return;
+
+            adapter = new ArrayAdapter<>(editor,
+                                         android.R.layout.select_dialog_item);
+
+            // Build dialog
+            AlertDialog.Builder builder = new AlertDialog.Builder(editor);
+            builder.setTitle(title);
+            builder.setAdapter(adapter, (dialog, which) ->
+            {
+                File file = matchList.get(which);
+                Uri uri = Uri.fromFile(file);
+                // Open the entry chosen
+                editor.readFile(uri);
+
+                // Put the search text back - why it
+                // disappears I have no idea or why I have to
+                // do it after a delay
+                editor.searchView.postDelayed(() ->
+                  editor.searchView.setQuery(search, false), Constants.FIND_DELAY);
+            });
+
+            builder.setNegativeButton(android.R.string.cancel, null);
+            builder.setOnDismissListener(dialog -> cancel(true));
+            dialog = builder.show();
+        }
+
+        // doInBackground
+        @Override
+        protected Integer doInBackground(File... params)
+        {
+            finder = new FileFinder(search, index, this::publishProgress);
+            try
+            {
+                finder.find(Arrays.asList(params));
+            }
+
+            catch (InterruptedException e)
+            {
+            }
+
+            return null;
+        }
+
+        // onProgressUpdate
+        @Override
+        protected void onProgressUpdate(File... files)
+        {
+            if (adapter == null)
+                return;
+
+            for (File file : files)
+            {
+                // Remove path prefix
+                String path = file.getPath();
+                String name =
+                    path.replaceFirst(Environment
+                                      .getExternalStorageDirectory()
+                                      .getPath() + File.separator, "");
+
+                matchList.add(file);
+                adapter.add(name);
+            }
+        }
+
+        // onPostExecute
+        @Override
+        protected void onPostExecute(Integer result)
+        {
+            final Editor editor = editorWeakReference.get();
+            if (editor == null || dialog == null)
+                return;
+
+            // Say how many files the search took too long over
+            if (finder != null && finder.getTimeouts() > 0)
+                dialog.setTitle(editor.getString(R.string.foundTimedOut,
+                                                 matchList.size(),
+                                                 finder.getTimeouts()));
+            else
+                dialog.setTitle(editor.getString(R.string.found,
+                                                 matchList.size()));
+        }
+    }
+
+    // ReplaceTask
+    private static class ReplaceTask
+        extends AsyncTask<CharSequence, Void, Integer>
+    {
+        private final WeakReference<Editor> editorWeakReference;
+        private final Replace replace;
+        private final int version;
+
+        private boolean timedOut;
+        private boolean busy;
+
+        // ReplaceTask
+        public ReplaceTask(Editor editor, Replace replace, int version)
+        {
+            editorWeakReference = new WeakReference<>(editor);
+            this.replace = replace;
+            this.version = version;
+        }
+
+        // doInBackground
+        @Override
+        protected Integer doInBackground(CharSequence... texts)
+        {
+            try
+            {
+                return replace.replaceAll(texts[0],
+                                          Constants.REPLACE_TIMEOUT);
+            }
+
+            // Timed out or cancelled
+            catch (Search.TimedOutException e)
+            {
+                timedOut = !isCancelled();
+                busy = (e instanceof Search.BusyException);
+                return 0;
+            }
+        }
+
+        // onPostExecute
+        @Override
+        protected void onPostExecute(Integer count)
+        {
+            final Editor editor = editorWeakReference.get();
+            if (editor == null || editor.replaceTask != this)
+                return;
+
+            editor.replaceTask = null;
+
+            if (timedOut && editor.customView != null)
+                editor.customView.setText(busy? R.string.searchRunning:
+                                          R.string.timedOut);
+
+            // Give up if the text has been changed since
+            if (editor.version != version || count == 0)
+                return;
+
+            // One edit, so the watcher only sees one change
+            editor.textView.getEditableText()
+                .replace(replace.getStart(), replace.getEnd(),
+                         replace.getResult());
+
+            if (editor.customView != null)
+                editor.customView.setText(editor.getString(R.string.replaced,
+                                                           count));
+        }
+    }
+
+    // GrammarTask
+    //
+    // Loads the grammars in the app assets, then those in the syntax
+    // folder in the app files folder on external storage, which
+    // replace any built in grammar for the same extensions
+    private static class GrammarTask
+        extends AsyncTask<Void, Void, List<Grammar>>
+    {
+        private final WeakReference<Editor> editorWeakReference;
+        private final AssetManager assets;
+        private final File dir;
+
+        private final List<String> errors = new ArrayList<>();
+
+        // GrammarTask
+        public GrammarTask(Editor editor)
+        {
+            editorWeakReference = new WeakReference<>(editor);
+            assets = editor.getAssets();
+            dir = new File(editor.getExternalFilesDir(null),
+                           Constants.SYNTAX);
+        }
+
+        // doInBackground
+        @Override
+        protected List<Grammar> doInBackground(Void... params)
+        {
+            List<Grammar> list = new ArrayList<>();
+            try
+            {
+                for (String name: assets.list(Constants.SYNTAX))
+                {
+                    if (!name.endsWith(Constants.SYNTAX_EXT))
+                        continue;
+
+                    try (InputStream in = assets
+                         .open(Constants.SYNTAX + File.separator + name))
+                    {
+                        load(list, name,
+                             new InputStreamReader(in, Constants.UTF_8));
+                    }
+                }
+            }
+
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+
+            File[] files = dir.listFiles();
+            if (files == null)
+                return list;
+
+            for (File syntaxFile: files)
+            {
+                if (!syntaxFile.getName().endsWith(Constants.SYNTAX_EXT))
+                    continue;
+
+                try (FileReader reader = new FileReader(syntaxFile))
+                {
+                    load(list, syntaxFile.getName(), reader);
+                }
+
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+
+            return list;
+        }
+
+        // load
+        private void load(List<Grammar> list, String name, Reader reader)
+            throws IOException
+        {
+            try
+            {
+                list.add(Grammar.load(reader));
+            }
+
+            catch (IllegalArgumentException e)
+            {
+                errors.add(name + ": " + e.getMessage());
+            }
+        }
+
+        // onPostExecute
+        @Override
+        protected void onPostExecute(List<Grammar> list)
+        {
+            final Editor editor = editorWeakReference.get();
+            if (editor == null || editor.isFinishing())
+                return;
+
+            editor.grammarsLoaded(list, errors);
+        }
+    }
+
+    // HighlightTask
+    private static class HighlightTask
+        extends AsyncTask<CharSequence, Void, Tokens>
+    {
+        // One thread, so tasks run in order
+        private final static Executor EXECUTOR =
+            Executors.newSingleThreadExecutor();
+
+        private final WeakReference<Editor> editorWeakReference;
+        private final Lexer lexer;
+        private final TokenCache cache;
+        private final int version;
+        private final int line;
+        private final int[] starts;
+
+        // Visible lines, within starts
+        private final int first;
+        private final int last;
+
+        // Line, offset and state to lex from
+        private final int from;
+        private final int offset;
+        private final int state;
+
+        // States at the start of each line lexed, from line from
+        private int[] states;
+
+        // HighlightTask
+        public HighlightTask(Editor editor, int version, int line,
+                             int[] starts, int first, int last,
+                             int from, int offset, int state)
+        {
+            editorWeakReference = new WeakReference<>(editor);
+            lexer = editor.lexer;
+            cache = editor.tokenCache;
+            this.version = version;
+            this.line = line;
+            this.starts = starts;
+            this.first = first;
+            this.last = last;
+            this.from = from;
+            this.offset = offset;
+            this.state = state;
+        }
+
+        // doInBackground
+        @Override
+        protected Tokens doInBackground(CharSequence... texts)
+        {
+            CharSequence text = texts[0];
+            Tokens tokens = new Tokens();
+            states = new int[line - from + starts.length];
+            states[0] = state;
+
+            // Catch up with the lines above the region, which are only
+            // lexed for their states
+            int start = offset;
+            for (int i = from; i < line && !isCancelled(); i++)
+            {
+                int end = Lexer.lineEnd(text, start, text.length()) + 1;
+                states[i - from + 1] = lex(text, i, start, end,
+                                           states[i - from], tokens);
+                tokens.clear();
+                start = end;
+            }
+
+            // Lex the region
+            for (int i = 0; i < starts.length - 1 && !isCancelled(); i++)
+            {
+                int index = line - from + i;
+                states[index + 1] = lex(text, line + i, starts[i],
+                                        starts[i + 1], states[index],
+                                        tokens);
+            }
+
+            return tokens;
+        }
+
+        // lex
+        //
+        // Lexes a line, using the cached tokens if it hasn't changed
+        private int lex(CharSequence text, int line, int start, int end,
+                        int state, Tokens tokens)
+        {
+            int next = cache.get(text, line, start, end, state, tokens);
+            if (next < 0)
+            {
+                int first = tokens.size();
+                next = lexer.lex(text, start, end, state, tokens);
+                cache.put(text, line, start, end, state, next,
+                          tokens, first);
+            }
+
+            return next;
+        }
+
+        // onPostExecute
+        @Override
+        protected void onPostExecute(Tokens tokens)
+        {
+            final Editor editor = editorWeakReference.get();
+            if (editor == null)
+                return;
+
+            if (editor.highlightTask == this)
+                editor.highlightTask = null;
+
+            // Throw the result away if the text has changed since
+            if (editor.version != version || editor.lines == null)
+                return;
+
+            editor.lines.setStates(from, states);
+            editor.scheduleTokens(tokens, starts, first, last);
+        }
+    }
+
+    // MatchTask
+    //
+    // Finds all the matches of a query, and passes them to the
+    // listener in batches as it goes
+    private static class MatchTask
+        extends AsyncTask<CharSequence, int[], Integer>
+    {
+        // One thread, so a cancelled task finishes before the next
+        private final static Executor EXECUTOR =
+            Executors.newSingleThreadExecutor();
+
+        private final WeakReference<Editor> editorWeakReference;
+        private final String query;
+        private final int version;
+
+        // Set if counting was given up on, which may carry on for a
+        // while, so it stops passing on matches
+        private volatile boolean stopped;
+        private boolean timedOut;
+        private boolean busy;
+
+        // MatchTask
+        public MatchTask(Editor editor, String query, int version)
+        {
+            editorWeakReference = new WeakReference<>(editor);
+            this.query = query;
+            this.version = version;
+        }
+
+        // doInBackground
+        @Override
+        protected Integer doInBackground(CharSequence... texts)
+        {
+            // Convert the snapshot once, as a regex matcher would
+            // otherwise convert it again whenever it's reset
+            String text = texts[0].toString();
+            Search search = Search.compile(query);
+            if (search == null)
+                return 0;
+
+            // A regex is counted on another thread, and given up on if
+            // it takes too long
+            try
+            {
+                return Search.isLiteral(query)? count(search, text):
+                    Search.watch(() -> count(search, text),
+                                 Constants.MATCH_TIMEOUT);
+            }
+
+            // Timed out or cancelled
+            catch (Search.TimedOutException e)
+            {
+                timedOut = !isCancelled();
+                busy = (e instanceof Search.BusyException);
+                stopped = true;
+                return 0;
+            }
+        }
+
+        // count
+        private int count(Search search, String text)
+        {
+            int[] batch = new int[Constants.MATCH_BATCH * 2];
+            int count = 0;
+            int total = 0;
+            long time = SystemClock.uptimeMillis();
+            int from = 0;
+            while (!isCancelled() && !stopped && from <= text.length() &&
+                   search.find(text, from, text.length()))
+            {
+                batch[count++] = search.start();
+                batch[count++] = search.end();
+                from = search.next();
+                total++;
+
+                // Pass on a full batch, or what there is now and then
+                if (!stopped && (count == batch.length ||
+                                 SystemClock.uptimeMillis() - time >
+                                 Constants.FIND_DELAY))
+                {
+                    publishProgress(Arrays.copyOf(batch, count));
+                    time = SystemClock.uptimeMillis();
+                    count = 0;
+                }
+            }
+
+            if (count > 0 && !stopped)
+                publishProgress(Arrays.copyOf(batch, count));
 
-            // Update boolean
-            edit = false;
+            return total;
         }
 
-        else
+        // onProgressUpdate
+        @Override
+        protected void onProgressUpdate(int[]... batches)
         {
-            // Set editable with or without suggestions
-            if (suggest)
-                textView.setInputType(InputType.TYPE_CLASS_TEXT |
-                                      InputType.TYPE_TEXT_FLAG_MULTI_LINE);
-            else
-                textView.setInputType(InputType.TYPE_CLASS_TEXT |
-                                      InputType.TYPE_TEXT_FLAG_MULTI_LINE |
-                                      InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS);
+            final Editor editor = editorWeakReference.get();
+            if (isCancelled() || editor == null ||
+                editor.version != version ||
+                editor.queryTextListener == null ||
+                editor.queryTextListener.matchTask != this)
+                return;
 
-            // Change typeface temporarily as workaround for yet another
-            // obscure feature of some versions of android
-            textView.setTypeface((type == Constants.NORMAL)?
-                                 Typeface.MONOSPACE:
-                                 Typeface.DEFAULT, Typeface.NORMAL);
-            textView.setTypeface((type == Constants.NORMAL)?
-                                 Typeface.DEFAULT:
-                                 Typeface.MONOSPACE, Typeface.NORMAL);
-            // Update boolean
-            edit = true;
+            editor.queryTextListener.addMatches(batches[0]);
         }
 
-        // Dismiss keyboard
-        textView.clearFocus();
-
-        // Update menu
-        invalidateOptionsMenu();
-    }
+        // onPostExecute
+        @Override
+        protected void onPostExecute(Integer total)
+        {
+            final Editor editor = editorWeakReference.get();
+            if (editor == null || editor.version != version ||
+                editor.queryTextListener == null ||
+                editor.queryTextListener.matchTask != this)
+                return;
 
-    private void onClick(DialogInterface dialog, int id) {
-        if (id == DialogInterface.BUTTON_POSITIVE) {
-            readFile(uri);
+            editor.queryTextListener.matchesDone(timedOut, busy);
         }
     }
 
-    // QueryTextListener
-    private class QueryTextListener
-        implements SearchView.OnQueryTextListener
+    // SaveTask
+    //
+    // Writes a snapshot of the document, which can't change while it
+    // is written. One thread, so saves are written in order.
+    private static class SaveTask
+        extends AsyncTask<Void, Void, Exception>
     {
-        private final BackgroundColorSpan span = new
-            BackgroundColorSpan(Color.YELLOW);
-        private Editable editable;
-        private Matcher matcher;
-        private int index;
-        private int height;
+        private final static Executor EXECUTOR =
+            Executors.newSingleThreadExecutor();
 
-        // onQueryTextChange
-        @Override
-        public boolean onQueryTextChange(String newText)
+        private final WeakReference<Editor> editorWeakReference;
+        private final ContentResolver resolver;
+        private final CharSequence text;
+        private final File file;
+        private final Uri uri;
+        private final String charset;
+        private final boolean bom;
+        private final int ending;
+        private final int version;
+        private final int sequence;
+
+        // Set if a later save of the same file is waiting, so this
+        // one needn't be written
+        private volatile boolean superseded;
+        private boolean skipped;
+
+        // SaveTask
+        public SaveTask(Editor editor, CharSequence text, File file,
+                        Uri uri, String charset, boolean bom, int ending,
+                        int version, int sequence)
         {
-            // Use regex search and spannable for highlighting
-            height = scrollView.getHeight();
-            editable = textView.getEditableText();
+            editorWeakReference = new WeakReference<>(editor);
+            resolver = editor.getApplicationContext().getContentResolver();
+            this.text = text;
+            this.file = file;
+            this.uri = uri;
+            this.charset = charset;
+            this.bom = bom;
+            this.ending = ending;
+            this.version = version;
+            this.sequence = sequence;
+        }
 
-            // Reset the index and clear highlighting
-            if (newText.length() == 0)
+        // doInBackground
+        @Override
+        protected Exception doInBackground(Void... params)
+        {
+            if (superseded)
             {
-                index = 0;
-                editable.removeSpan(span);
-                return false;
+                skipped = true;
+                return null;
             }
 
-            // Check pattern
             try
             {
-                Pattern pattern = Pattern.compile(newText, Pattern.MULTILINE);
-                matcher = pattern.matcher(editable);
+                if (file != null)
+                    writeFile(file.getCanonicalFile());
+
+                else
+                    writeUri();
             }
 
             catch (Exception e)
             {
-                return false;
+                e.printStackTrace();
+                return e;
             }
 
-            // Find text
-            if (matcher.find(index))
-            {
-                // Get index
-                index = matcher.start();
+            return null;
+        }
 
-                // Check layout
-                if (textView.getLayout() == null)
-                    return false;
+        // isTarget
+        private boolean isTarget(File file, Uri uri)
+        {
+            return (file != null)? file.equals(this.file):
+                uri != null && uri.equals(this.uri);
+        }
 
-                // Get text position
-                int line = textView.getLayout().getLineForOffset(index);
-                int pos = textView.getLayout().getLineBaseline(line);
+        // writeFile
+        //
+        // Writes a hidden file next to the file, forces it to storage,
+        // then renames it over the file, so the file is never left half
+        // written. If it fails, such as when storage is full, the file
+        // is left as it was. Where no file can be created in the
+        // folder, but the file itself may be writable, writes the file
+        // in place, and checks it.
+        private void writeFile(File file) throws IOException
+        {
+            File parent = file.getParentFile();
+            parent.mkdirs();
 
-                // Scroll to it
-                scrollView.smoothScrollTo(0, pos - height / 2);
+            File temp = new File(parent, "." + file.getName() +
+                                 Constants.TEMP_EXT);
+            FileOutputStream fos;
+            try
+            {
+                fos = new FileOutputStream(temp);
+            }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            // Folder not writable
+            catch (FileNotFoundException e)
+            {
+                writeChecked(() -> new FileOutputStream(file),
+                             () -> new FileInputStream(file));
+                return;
             }
 
-            else
-                index = 0;
+            try
+            {
+                try (FileOutputStream out = fos)
+                {
+                    FileChannel channel = out.getChannel();
+                    write(Channels.newOutputStream(channel));
+                    channel.force(true);
+                }
 
-            return true;
-        }
+                if (!temp.renameTo(file))
+                    throw new IOException(file.getPath());
+            }
 
-        // onQueryTextSubmit
-        @Override
-        public boolean onQueryTextSubmit(String query)
-        {
-            // Find next text
-            if (matcher.find())
+            finally
             {
-                // Get index
-                index = matcher.start();
+                temp.delete();
+            }
+        }
 
-                // Get text position
-                int line = textView.getLayout().getLineForOffset(index);
-                int pos = textView.getLayout().getLineBaseline(line);
+        // writeUri
+        //
+        // A content uri can't be renamed, so write it and check it
+        private void writeUri() throws IOException
+        {
+            writeChecked(() -> resolver.openOutputStream(uri, "rwt"),
+                         () -> resolver.openInputStream(uri));
+        }
 
-                // Scroll to it
-                scrollView.smoothScrollTo(0, pos - height / 2);
+        // writeChecked
+        //
+        // Writes, syncs if it can, and closes, then reads it back and
+        // checks the length and checksum
+        private void writeChecked(Sink sink, Source source)
+            throws IOException
+        {
+            CRC32 written = new CRC32();
+            long length;
+            try (OutputStream os = sink.open())
+            {
+                if (os == null)
+                    throw new FileNotFoundException(String.valueOf(uri));
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                length = write(new CheckedOutputStream(os, written));
+                if (os instanceof FileOutputStream)
+                    ((FileOutputStream) os).getFD().sync();
             }
 
-            else
+            CRC32 crc = new CRC32();
+            long read = 0;
+            try (InputStream is = source.open())
             {
-                matcher.reset();
-                index = 0;
+                if (is == null)
+                    throw new FileNotFoundException(String.valueOf(uri));
+
+                byte[] buffer = new byte[Constants.BUFFER_SIZE];
+                int n;
+                while ((n = is.read(buffer)) >= 0)
+                {
+                    crc.update(buffer, 0, n);
+                    read += n;
+                }
             }
 
-            return true;
+            if (read != length || crc.getValue() != written.getValue())
+                throw new IOException("Saved file doesn't match");
         }
-    }
 
-    // readFile
-    private CharSequence readFile(File file)
-    {
-        StringBuilder text = new StringBuilder();
-        // Open file
-        try (BufferedReader reader = new BufferedReader
-             (new InputStreamReader
-              (new BufferedInputStream(new FileInputStream(file)))))
+        // write
+        //
+        // Returns the number of bytes written
+        private long write(OutputStream os) throws IOException
         {
-            String line;
-            while ((line = reader.readLine()) != null)
-            {
-                text.append(line);
-                text.append(System.getProperty("line.separator"));
-            }
+            CountingOutputStream counted = new CountingOutputStream(os);
+            BufferedWriter writer = new BufferedWriter
+                (new OutputStreamWriter(counted, charset));
+            Editor.write(text, writer, bom, ending);
+            writer.flush();
+            return counted.count;
+        }
+
+        // onPostExecute
+        @Override
+        protected void onPostExecute(Exception e)
+        {
+            final Editor editor = editorWeakReference.get();
+            if (editor == null)
+                return;
 
-            return text;
+            editor.saved(this, e);
         }
 
-        catch (Exception e)
+        // Source
+        private interface Source
         {
-            e.printStackTrace();
+            // open
+            InputStream open() throws IOException;
         }
 
-        return text;
-    }
+        // Sink
+        private interface Sink
+        {
+            // open
+            OutputStream open() throws IOException;
+        }
 
-    // ScaleListener
-    private class ScaleListener
-        extends ScaleGestureDetector.SimpleOnScaleGestureListener
-    {
-        // onScale
-        @Override
-        public boolean onScale(ScaleGestureDetector detector)
+        // CountingOutputStream class
+        private static class CountingOutputStream extends FilterOutputStream
         {
-            size *= detector.getScaleFactor();
-            size = Math.max(Constants.TINY, Math.min(size, Constants.HUGE));
-            textView.setTextSize(size);
-            invalidateOptionsMenu();
+            private long count;
 
-            return true;
+            // CountingOutputStream
+            private CountingOutputStream(OutputStream os)
+            {
+                super(os);
+            }
+
+            // write
+            @Override
+            public void write(int b) throws IOException
+            {
+                out.write(b);
+                count++;
+            }
+
+            // write
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                out.write(b, off, len);
+                count += len;
+            }
         }
     }
 
-    // FindTask
-    private static class FindTask
-            extends AsyncTask<String, Void, List<File>>
+    // ViewTask
+    private static class ViewTask
+        extends AsyncTask<Uri, Void, String>
     {
         private final WeakReference<Editor> editorWeakReference;
-        private String search;
+        private final ContentResolver resolver;
 
-        // FindTask
-        public FindTask(Editor editor)
+        private String match;
+        private int page;
+
+        private MappedFile viewer;
+        private ArrayDeque<Integer> lengths;
+        private Exception exception;
+
+        // ViewTask
+        //
+        // Detects the charset if match is null
+        public ViewTask(Editor editor, int page, String match)
         {
             editorWeakReference = new WeakReference<>(editor);
+            resolver = editor.getContentResolver();
+            this.page = page;
+            this.match = match;
         }
 
         // doInBackground
         @Override
-        protected List<File> doInBackground(String... params)
+        protected String doInBackground(Uri... uris)
         {
-            // Create a list of matches
-            List<File> matchList = new ArrayList<>();
-            final Editor editor = editorWeakReference.get();
-            if (editor == null)
-                return matchList;
-
-            search = params[0];
-            // Check pattern
-            Pattern pattern;
+            FileInputStream input = null;
             try
             {
-                pattern = Pattern.compile(search, Pattern.MULTILINE);
+                if (Constants.CONTENT.equalsIgnoreCase(uris[0].getScheme()))
+                    input = new ParcelFileDescriptor.AutoCloseInputStream
+                        (resolver.openFileDescriptor(uris[0], "r"));
+
+                else
+                    input = new FileInputStream(uris[0].getPath());
+
+                if (match == null)
+                {
+                    // Detect charset from the start of the file
+                    CharsetMatch detected;
+                    try (BufferedInputStream in = new BufferedInputStream
+                         (resolver.openInputStream(uris[0])))
+                    {
+                        detected = new CharsetDetector()
+                            .setDeclaredEncoding(Constants.UTF_8)
+                            .setText(in).detect();
+                    }
+
+                    match = (detected != null)?
+                        getCharset(detected.getName()).name():
+                        Constants.UTF_8;
+                }
+
+                Charset charset = getCharset(match);
+                if (!MappedFile.isSupported(charset))
+                    throw new UnsupportedCharsetException(match);
+
+                viewer = new MappedFile(input, charset);
+
+                // Fill the window from page
+                page = Math.max(Math.min(page, viewer.pages() -
+                                         Constants.VIEW_PAGES), 0);
+                lengths = new ArrayDeque<>();
+
+                StringBuilder text = new StringBuilder();
+                int last = Math.min(page + Constants.VIEW_PAGES,
+                                    viewer.pages());
+                for (int i = page; i < last && !isCancelled(); i++)
+                {
+                    String string = viewer.getPage(i);
+                    lengths.addLast(string.length());
+                    text.append(string);
+                }
+
+                return text.toString();
             }
 
             catch (Exception e)
             {
-                return matchList;
-            }
+                exception = e;
+                e.printStackTrace();
 
-            // Get entry list
-            List<File> entries = new ArrayList<>();
-            for (String path : editor.pathMap.keySet())
-            {
-                File entry = new File(path);
-                entries.add(entry);
+                try
+                {
+                    if (viewer != null)
+                        viewer.close();
+
+                    else if (input != null)
+                        input.close();
+                }
+
+                catch (Exception x) {}
+
+                viewer = null;
+                return null;
             }
- 
-            // Check the entries
-            for (File file : entries)
+        }
+
+        // onCancelled
+        @Override
+        protected void onCancelled(String result)
+        {
+            try
             {
-                CharSequence content = editor.readFile(file);
-                Matcher matcher = pattern.matcher(content);
-                if (matcher.find())
-                    matchList.add(file);
+                if (viewer != null)
+                    viewer.close();
             }
 
-            return matchList;
+            catch (Exception e) {}
         }
 
         // onPostExecute
         @Override
-        protected void onPostExecute(List<File> matchList)
+        protected void onPostExecute(String result)
         {
             final Editor editor = editorWeakReference.get();
             if (editor == null)
+            {
+                onCancelled(result);
                 return;
+            }
 
-            // Build dialog
-            AlertDialog.Builder builder = new AlertDialog.Builder(editor);
-            builder.setTitle(R.string.findAll);
+            editor.viewed(this, result);
+        }
+    }
 
-            // If found populate dialog
-            if (!matchList.isEmpty())
-            {
-                List<String> choiceList = new ArrayList<>();
-                for (File file : matchList)
-                {
-                    // Remove path prefix
-                    String path = file.getPath();
-                    String name =
-                        path.replaceFirst(Environment
-                                          .getExternalStorageDirectory()
-                                          .getPath() + File.separator, "");
-
-                    choiceList.add(name);
-                }
+    // PageTask
+    private static class PageTask
+        extends AsyncTask<Integer, Void, String>
+    {
+        private final WeakReference<Editor> editorWeakReference;
+        private final MappedFile viewer;
+        private final boolean before;
 
-                String[] choices = choiceList.toArray(new String[0]);
-                builder.setItems(choices, (dialog, which) ->
-                {
-                    File file = matchList.get(which);
-                    Uri uri = Uri.fromFile(file);
-                    // Open the entry chosen
-                    editor.readFile(uri);
+        // PageTask
+        //
+        // Decodes a page to go before or after the window
+        public PageTask(Editor editor, MappedFile viewer, boolean before)
+        {
+            editorWeakReference = new WeakReference<>(editor);
+            this.viewer = viewer;
+            this.before = before;
+        }
+
+        // doInBackground
+        @Override
+        protected String doInBackground(Integer... pages)
+        {
+            try
+            {
+                return viewer.getPage(pages[0]);
+            }
 
-                    // Put the search text back - why it
-                    // disappears I have no idea or why I have to
-                    // do it after a delay
-                    editor.searchView.postDelayed(() ->
-                      editor.searchView.setQuery(search, false), Constants.FIND_DELAY);
-                });
+            // The viewer may have been closed
+            catch (Exception e)
+            {
+                return null;
             }
+        }
 
-            builder.setNegativeButton(android.R.string.cancel, null);
-            builder.show();
+        // onPostExecute
+        @Override
+        protected void onPostExecute(String result)
+        {
+            final Editor editor = editorWeakReference.get();
+            if (editor == null)
+                return;
+
+            editor.paged(this, result);
         }
     }
 
     // ReadTask
     private static class ReadTask
-        extends AsyncTask<Uri, Void, CharSequence>
+        extends AsyncTask<Uri, CharSequence, PieceTable>
     {
         private final WeakReference<Editor> editorWeakReference;
+        private final long size;
+
+        private TextDecoder decoder;
+        private LineIndex lines;
+        private int published;
 
-        public ReadTask(Editor editor)
+        private boolean started;
+
+        public ReadTask(Editor editor, long size)
         {
             editorWeakReference = new WeakReference<>(editor);
+            this.size = size;
         }
 
         // doInBackground
         @Override
-        protected CharSequence doInBackground(Uri... uris)
+        protected PieceTable doInBackground(Uri... uris)
         {
-            StringBuilder stringBuilder = new StringBuilder();
             final Editor editor = editorWeakReference.get();
             if (editor == null)
-                return stringBuilder;
+                return new PieceTable();
 
             // Default UTF-8
             if (editor.match == null)
@@ -3089,8 +4726,8 @@ public class Editor extends Activity
             try (BufferedInputStream in = new BufferedInputStream
                  (editor.getContentResolver().openInputStream(uris[0])))
             {
-                // Create reader
-                BufferedReader reader;
+                // Get charset
+                Charset charset;
                 if (editor.match.equals(editor.getString(R.string.detect)))
                 {
                     // Detect charset, using UTF-8 hint
@@ -3100,29 +4737,34 @@ public class Editor extends Activity
 
                     if (match != null)
                     {
-                        editor.match = match.getName();
+                        // Use the name of the charset actually used,
+                        // so it's saved the same way
+                        charset = getCharset(match.getName());
+                        editor.match = charset.name();
                         editor.runOnUiThread(() ->
                             editor.getActionBar().setSubtitle(editor.match));
-                        reader = new BufferedReader(match.getReader());
                     }
 
                     else
-                        reader = new BufferedReader
-                            (new InputStreamReader(in));
+                        charset = Charset.defaultCharset();
 
                     if (BuildConfig.DEBUG && match != null)
                         Log.d(TAG, "Charset " + editor.match);
                 }
 
                 else
-                     reader = new BufferedReader
-                         (new InputStreamReader(in, editor.match));
+                    charset = getCharset(editor.match);
 
-                String line;
-                while ((line = reader.readLine()) != null)
+                // Decode in bulk
+                decoder = new TextDecoder(charset, size);
+                while (decoder.read(in) && !isCancelled())
                 {
-                    stringBuilder.append(line);
-                    stringBuilder.append(System.getProperty("line.separator"));
+                    // Publish the first screen as soon as it's read,
+                    // then larger batches
+                    if (decoder.length() - published >= ((published == 0)?
+                                                         Constants.FIRST_LOAD:
+                                                         Constants.BATCH_LOAD))
+                        publish();
                 }
             }
 
@@ -3135,17 +4777,64 @@ public class Editor extends Activity
                 e.printStackTrace();
             }
 
-            return stringBuilder;
+            if (decoder == null)
+                decoder = new TextDecoder(Charset.defaultCharset(), 0);
+
+            // Publish the rest, which comes before the result
+            if (decoder.length() > published || published == 0)
+                publish();
+
+            // Index the lines here, rather than on the UI thread
+            lines = new LineIndex(decoder.getBuffer(), decoder.length());
+
+            // The table takes the buffer as its original buffer
+            return new PieceTable(decoder.getBuffer(), decoder.length());
+        }
+
+        // publish
+        private void publish()
+        {
+            // Wrap, rather than copy, the chars read since the last
+            // batch. They are never written again, even if the
+            // buffer grows.
+            publishProgress(CharBuffer.wrap(decoder.getBuffer(), published,
+                                            decoder.length() - published));
+            published = decoder.length();
+        }
+
+        // onProgressUpdate
+        @Override
+        protected void onProgressUpdate(CharSequence... chunks)
+        {
+            final Editor editor = editorWeakReference.get();
+            if (editor == null || isCancelled())
+                return;
+
+            // Replace the loading message with the first chunk, then
+            // append, which only lays out the new text
+            if (started)
+                editor.textView.append(chunks[0]);
+
+            else
+            {
+                editor.textView.setText(chunks[0]);
+                started = true;
+            }
         }
 
         // onPostExecute
         @Override
-        protected void onPostExecute(CharSequence result)
+        protected void onPostExecute(PieceTable result)
         {
             final Editor editor = editorWeakReference.get();
             if (editor == null)
                 return;
 
+            // Keep line ends and byte order mark for saving
+            editor.ending = decoder.getLineEnding();
+            editor.bom = decoder.hasBOM();
+            editor.lines = lines;
+            editor.tokenCache.clear();
             editor.loadText(result);
         }
     }
@@ -45,8 +45,6 @@ public class FileAdapter extends BaseAdapter
 
     private final static String APPLICATION = "application";
 
-    private final static long LARGE = 256*1024;
-
     private final LayoutInflater inflater;
     private final List<File> files;
 
@@ -190,13 +188,6 @@ public class FileAdapter extends BaseAdapter
                     name.setCompoundDrawablesWithIntrinsicBounds(fileId,
                                                                  0, 0, 0);
             }
-
-            // Too large
-            if (file.length() > LARGE)
-            {
-                name.setEnabled(false);
-                name.setClickable(true);
-            }
         }
 
         return convertView;
@@ -0,0 +1,428 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// FileFinder class
+//
+// Finds the files that contain a query, searching files and folders,
+// and the folders in them. Files are searched in parallel on a few
+// threads, with a limit on how many are waiting, so a large folder
+// doesn't queue up all its files at once. Each file is read a chunk
+// at a time, ending at a line end, and only until the first match,
+// unless the query can match across lines, when it is read whole.
+// Matches are passed to the listener as they are found, from the
+// search threads. With a TrigramIndex, files that haven't changed are
+// only read if they have all the trigrams in the query, and files
+// that have are indexed as they are searched. A file a regex takes
+// too long over is counted and passed over.
+public class FileFinder
+{
+    private final static String TAG = "FileFinder";
+
+    private final String query;
+    private final TrigramIndex index;
+    private final Listener listener;
+    private volatile boolean cancelled;
+    private final AtomicInteger timeouts = new AtomicInteger();
+
+    // Files in the index that may match, null for all of them
+    private BitSet candidates;
+    private final Set<String> found = new HashSet<>();
+
+    // FileFinder
+    public FileFinder(String query, Listener listener)
+    {
+        this(query, null, listener);
+    }
+
+    // FileFinder
+    public FileFinder(String query, TrigramIndex index, Listener listener)
+    {
+        this.query = query;
+        this.index = index;
+        this.listener = listener;
+    }
+
+    // find
+    //
+    // Searches the files and folders, and returns when done. Throws
+    // InterruptedException if the thread is interrupted, after
+    // stopping the search.
+    public void find(List<File> roots) throws InterruptedException
+    {
+        if (Search.compile(query) == null)
+            return;
+
+        if (index != null)
+        {
+            index.load();
+            candidates = index.candidates(TrigramIndex.trigrams(query));
+        }
+
+        int threads = Math.max(1, Math.min(Constants.FIND_THREADS,
+                                           Runtime.getRuntime()
+                                           .availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Semaphore waiting = new Semaphore(Constants.FIND_WAITING);
+
+        try
+        {
+            // Walk the folders, avoiding links back up the tree
+            Set<String> seen = new HashSet<>();
+            Deque<File> folders = new ArrayDeque<>();
+            for (File root: roots)
+            {
+                if (root.isDirectory())
+                    folders.add(root);
+
+                else
+                    submit(executor, waiting, root);
+            }
+
+            while (!folders.isEmpty() && !cancelled)
+            {
+                File folder = folders.remove();
+                if (!seen.add(folder.getCanonicalPath()))
+                    continue;
+
+                File[] files = folder.listFiles();
+                if (files == null)
+                    continue;
+
+                Arrays.sort(files);
+                for (File file: files)
+                {
+                    if (file.isHidden())
+                        continue;
+
+                    if (file.isDirectory())
+                        folders.add(file);
+
+                    else
+                        submit(executor, waiting, file);
+                }
+            }
+
+            // Forget files that have gone
+            if (index != null && !cancelled)
+                index.retain(roots, found);
+
+            executor.shutdown();
+            while (!executor.awaitTermination(Constants.FIND_DELAY,
+                                              TimeUnit.MILLISECONDS));
+
+            if (index != null)
+                index.save();
+        }
+
+        catch (InterruptedException e)
+        {
+            cancel();
+            executor.shutdownNow();
+            throw e;
+        }
+
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            executor.shutdownNow();
+        }
+    }
+
+    // cancel
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    // getTimeouts
+    //
+    // Returns the number of files the search took too long over
+    public int getTimeouts()
+    {
+        return timeouts.get();
+    }
+
+    // search
+    private Search search()
+    {
+        Search search = Search.compile(query);
+        search.setTimeout(Constants.FIND_TIMEOUT);
+        return search;
+    }
+
+    // submit
+    //
+    // Waits for room, then queues a search of the file, unless the
+    // index shows it can't match
+    private void submit(ExecutorService executor, Semaphore waiting,
+                        File file) throws InterruptedException
+    {
+        TrigramIndex.Entry entry = null;
+        if (index != null)
+        {
+            found.add(file.getPath());
+            entry = index.get(file);
+            if (entry != null && entry.isIndexed() && candidates != null &&
+                !candidates.get(entry.getId()))
+                return;
+        }
+
+        boolean update = (index != null && entry == null);
+        waiting.acquire();
+        executor.execute(() ->
+        {
+            try
+            {
+                if (!cancelled && (update? indexed(file): contains(file)))
+                    listener.onFound(file);
+            }
+
+            finally
+            {
+                waiting.release();
+            }
+        });
+    }
+
+    // contains
+    //
+    // Reads the file a chunk at a time, and returns true at the first
+    // match. Chunks end at a line end, with the rest of the line kept
+    // for the next chunk, so matches within a line are never split.
+    // If the query can match across lines, the file is read whole,
+    // unless it is too big to index, when the last lines of each
+    // chunk are kept as well, so only matches longer than that are
+    // missed. Files that look binary are skipped.
+    private boolean contains(File file)
+    {
+        Search search = search();
+        boolean single = Search.isSingleLine(query);
+        if (!single && file.length() <= Constants.INDEX_SIZE)
+        {
+            CharBuffer buffer = read(file);
+            if (buffer == null || isBinary(buffer.array(), buffer.limit()))
+                return false;
+
+            return find(search, buffer);
+        }
+
+        char[] chars = new char[Constants.FIND_CHUNK];
+        boolean first = true;
+        int kept = 0;
+
+        try (Reader reader = new InputStreamReader
+             (new FileInputStream(file), Charset.defaultCharset()))
+        {
+            while (!cancelled)
+            {
+                int n = reader.read(chars, kept, chars.length - kept);
+                if (n < 0)
+                    return kept > 0 &&
+                        search.find(CharBuffer.wrap(chars, 0, kept),
+                                    0, kept);
+
+                int length = kept + n;
+                if (first)
+                {
+                    if (isBinary(chars, length))
+                        return false;
+
+                    first = false;
+                }
+
+                int end = length;
+                while (end > 0 && chars[end - 1] != '\n')
+                    end--;
+
+                // No line end, read more of the line, up to a limit
+                if (end == 0)
+                {
+                    if (length < chars.length)
+                    {
+                        kept = length;
+                        continue;
+                    }
+
+                    if (chars.length < Constants.FIND_LINE)
+                    {
+                        chars = Arrays.copyOf(chars, chars.length * 2);
+                        kept = length;
+                        continue;
+                    }
+
+                    end = length;
+                }
+
+                // Only what has been read, as anchors and lookarounds
+                // can see past the end
+                if (search.find(CharBuffer.wrap(chars, 0, length), 0, end))
+                    return true;
+
+                // Keep the last lines too if a match can span them,
+                // but always move on
+                int overlap = single? 0:
+                    Math.min(Constants.FIND_OVERLAP, end / 2);
+                kept = length - end + overlap;
+                System.arraycopy(chars, end - overlap, chars, 0, kept);
+            }
+        }
+
+        catch (Search.TimedOutException e)
+        {
+            if (!cancelled)
+                timeouts.incrementAndGet();
+        }
+
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    // indexed
+    //
+    // Reads all the file, adds its trigrams to the index, and returns
+    // true if it matches. Files too big to index are searched a chunk
+    // at a time, and always searched after.
+    private boolean indexed(File file)
+    {
+        long modified = file.lastModified();
+        long size = file.length();
+        if (size > Constants.INDEX_SIZE)
+        {
+            index.put(file, modified, size, false, new int[0]);
+            return contains(file);
+        }
+
+        CharBuffer buffer = read(file);
+        if (buffer == null)
+            return false;
+
+        // Binary files have no trigrams, so never match
+        char[] chars = buffer.array();
+        int length = buffer.limit();
+        if (isBinary(chars, length))
+        {
+            index.put(file, modified, size, true, new int[0]);
+            return false;
+        }
+
+        index.put(file, modified, size, true,
+                  TrigramIndex.trigrams(chars, length));
+        return find(search(), buffer);
+    }
+
+    // read
+    //
+    // Reads all the file, or returns null if it can't be read, or the
+    // search is cancelled
+    private CharBuffer read(File file)
+    {
+        char[] chars = new char[(int) file.length() + 1];
+        int length = 0;
+
+        try (Reader reader = new InputStreamReader
+             (new FileInputStream(file), Charset.defaultCharset()))
+        {
+            int n;
+            while ((n = reader.read(chars, length,
+                                    chars.length - length)) >= 0)
+            {
+                if (cancelled)
+                    return null;
+
+                length += n;
+                if (length == chars.length)
+                    chars = Arrays.copyOf(chars, length * 2);
+            }
+        }
+
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+
+        return CharBuffer.wrap(chars, 0, length);
+    }
+
+    // find
+    //
+    // Returns true if the search finds a match in all the text, or
+    // false if it takes too long
+    private boolean find(Search search, CharBuffer buffer)
+    {
+        try
+        {
+            return search.find(buffer, 0, buffer.limit());
+        }
+
+        catch (Search.TimedOutException e)
+        {
+            if (!cancelled)
+                timeouts.incrementAndGet();
+
+            return false;
+        }
+    }
+
+    // isBinary
+    //
+    // Returns true if there is a nul in the first chunk of the text
+    private static boolean isBinary(char[] chars, int length)
+    {
+        for (int i = 0; i < Math.min(length, Constants.FIND_CHUNK); i++)
+            if (chars[i] == 0)
+                return true;
+
+        return false;
+    }
+
+    // Listener
+    public interface Listener
+    {
+        // onFound
+        void onFound(File file);
+    }
+}
@@ -0,0 +1,414 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Grammar class
+//
+// A syntax described by a list of token rules, read from a text file,
+// see Syntax.md. The rules for each lexer state are compiled into one
+// Dfa, so a line is lexed in one pass however many rules there are.
+// Grammars are only compiled when first used.
+public class Grammar
+{
+    private final static String TAG = "Grammar";
+
+    // Token type names, in the same order as the Lexer types
+    private final static String TYPE_NAMES[] =
+    {
+        "none", "keyword", "type", "class", "number", "annotation",
+        "constant", "operator", "comment", "string", "element",
+        "attribute", "hex", "header", "emphasis", "link", "code",
+        "variable"
+    };
+
+    // Words are looked up in the word lists
+    private final static String WORD = "word";
+    private final static int WORD_TYPE = -1;
+
+    // Line states are held in a byte
+    private final static int MAX_STATES = Byte.MAX_VALUE;
+
+    private final static String ANCHOR = "^";
+
+    private String name;
+    private final List<String> extensions = new ArrayList<>();
+    private final List<String> files = new ArrayList<>();
+
+    private Keywords keywords;
+    private Keywords types;
+    private Keywords constants;
+
+    private State[] states;
+    private Lexer lexer;
+
+    // Grammar
+    private Grammar()
+    {
+    }
+
+    // load
+    //
+    // Reads a grammar, throws IllegalArgumentException if it isn't
+    // valid. The rules aren't compiled until the lexer is needed.
+    public static Grammar load(Reader reader) throws IOException
+    {
+        Grammar grammar = new Grammar();
+        List<String> keywordList = new ArrayList<>();
+        List<String> typeList = new ArrayList<>();
+        List<String> constantList = new ArrayList<>();
+        List<State> stateList = new ArrayList<>();
+        boolean ignoreCase = false;
+
+        BufferedReader buffer = new BufferedReader(reader);
+        String line;
+        int number = 0;
+        while ((line = buffer.readLine()) != null)
+        {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String fields[] = line.split("\\s+");
+            List<String> values =
+                Arrays.asList(fields).subList(1, fields.length);
+            State state = stateList.isEmpty()? null:
+                stateList.get(stateList.size() - 1);
+
+            if (fields[0].equals("state"))
+            {
+                if (fields.length < 2 || fields.length > 3)
+                    throw error(number, "State needs a name");
+
+                int type = (fields.length > 2)?
+                    type(fields[2], number): Lexer.NONE;
+                if (type == WORD_TYPE)
+                    throw error(number, "State can't be a word");
+
+                stateList.add(new State(fields[1], type));
+                continue;
+            }
+
+            // Rules follow the first state
+            if (state != null)
+            {
+                if (fields.length < 2 || fields.length > 3)
+                    throw error(number, "Rule needs a type and pattern");
+
+                state.add(type(fields[0], number), fields[1],
+                          (fields.length > 2)? fields[2]: null, number);
+                continue;
+            }
+
+            switch (fields[0])
+            {
+            case "name":
+                grammar.name = line.substring(fields[0].length()).trim();
+                break;
+
+            case "extensions":
+                grammar.extensions.addAll(values);
+                break;
+
+            case "files":
+                grammar.files.addAll(values);
+                break;
+
+            case "keywords":
+                keywordList.addAll(values);
+                break;
+
+            case "types":
+                typeList.addAll(values);
+                break;
+
+            case "constants":
+                constantList.addAll(values);
+                break;
+
+            case "ignorecase":
+                ignoreCase = true;
+                break;
+
+            default:
+                throw error(number, "Unknown " + fields[0]);
+            }
+        }
+
+        if (grammar.name == null)
+            throw error(number, "No name");
+
+        if (stateList.isEmpty())
+            throw error(number, "No states");
+
+        if (stateList.size() > MAX_STATES)
+            throw error(number, "Too many states");
+
+        grammar.keywords =
+            new Keywords(keywordList.toArray(new String[0]), ignoreCase);
+        grammar.types =
+            new Keywords(typeList.toArray(new String[0]), ignoreCase);
+        grammar.constants =
+            new Keywords(constantList.toArray(new String[0]), ignoreCase);
+
+        grammar.states = stateList.toArray(new State[0]);
+        return grammar;
+    }
+
+    // getName
+    public String getName()
+    {
+        return name;
+    }
+
+    // getExtensions
+    //
+    // Returns the file extensions, without the dot
+    public List<String> getExtensions()
+    {
+        return extensions;
+    }
+
+    // getFiles
+    //
+    // Returns the file names, such as Makefile, that have no extension
+    public List<String> getFiles()
+    {
+        return files;
+    }
+
+    // getLexer
+    //
+    // Compiles the rules the first time, throws
+    // IllegalArgumentException if a pattern isn't valid
+    public synchronized Lexer getLexer()
+    {
+        if (lexer == null)
+        {
+            List<State> stateList = Arrays.asList(states);
+            for (State state: states)
+                state.compile(stateList);
+
+            lexer = new GrammarLexer();
+        }
+
+        return lexer;
+    }
+
+    // type
+    private static int type(String name, int number)
+    {
+        if (name.equals(WORD))
+            return WORD_TYPE;
+
+        int type = Arrays.asList(TYPE_NAMES).indexOf(name);
+        if (type < 0)
+            throw error(number, "Unknown type " + name);
+
+        return type;
+    }
+
+    // error
+    private static IllegalArgumentException error(int number, String message)
+    {
+        return new IllegalArgumentException("Line " + number + ": " + message);
+    }
+
+    // State class
+    //
+    // The rules for one lexer state, and the type of any text they
+    // don't match. Rules anchored with ^ only match at the start of a
+    // line, so there are two Dfas, one with them and one without.
+    private static class State
+    {
+        private final String name;
+        private final int type;
+
+        private final List<String> patterns = new ArrayList<>();
+        private final List<String> nextNames = new ArrayList<>();
+        private final List<Integer> ruleTypes = new ArrayList<>();
+        private final List<Integer> ruleLines = new ArrayList<>();
+
+        private int[] types;
+        private int[] nexts;
+
+        // Dfas and the rule for each of their rules
+        private Dfa first;
+        private Dfa rest;
+        private int[] firstRules;
+        private int[] restRules;
+
+        // State
+        private State(String name, int type)
+        {
+            this.name = name;
+            this.type = type;
+        }
+
+        // add
+        private void add(int type, String pattern, String next, int number)
+        {
+            ruleTypes.add(type);
+            patterns.add(pattern);
+            nextNames.add(next);
+            ruleLines.add(number);
+        }
+
+        // compile
+        private void compile(List<State> states)
+        {
+            int count = patterns.size();
+            types = new int[count];
+            nexts = new int[count];
+
+            List<String> firstList = new ArrayList<>();
+            List<String> restList = new ArrayList<>();
+            List<Integer> restIndex = new ArrayList<>();
+            for (int i = 0; i < count; i++)
+            {
+                types[i] = ruleTypes.get(i);
+                nexts[i] = -1;
+
+                String next = nextNames.get(i);
+                for (int s = 0; next != null && s < states.size(); s++)
+                    if (states.get(s).name.equals(next))
+                        nexts[i] = s;
+
+                if (next != null && nexts[i] < 0)
+                    throw error(ruleLines.get(i), "Unknown state " + next);
+
+                String pattern = patterns.get(i);
+                if (pattern.startsWith(ANCHOR))
+                    pattern = pattern.substring(ANCHOR.length());
+
+                else
+                {
+                    restList.add(pattern);
+                    restIndex.add(i);
+                }
+
+                firstList.add(pattern);
+            }
+
+            firstRules = new int[count];
+            for (int i = 0; i < count; i++)
+                firstRules[i] = i;
+
+            restRules = new int[restIndex.size()];
+            for (int i = 0; i < restRules.length; i++)
+                restRules[i] = restIndex.get(i);
+
+            first = dfa(firstList);
+            rest = (restList.size() == count)? first: dfa(restList);
+        }
+
+        // dfa
+        private Dfa dfa(List<String> list)
+        {
+            try
+            {
+                return Dfa.compile(list.toArray(new String[0]));
+            }
+
+            catch (IllegalArgumentException e)
+            {
+                throw new IllegalArgumentException("State " + name + ": " +
+                                                   e.getMessage());
+            }
+        }
+    }
+
+    // GrammarLexer class
+    private class GrammarLexer extends Lexer
+    {
+        // lexLine
+        @Override
+        protected int lexLine(CharSequence text, int start, int end,
+                              int state, Tokens tokens)
+        {
+            if (state < 0 || state >= states.length)
+                state = NORMAL;
+
+            // Text no rule matches is given the type of the state
+            int run = start;
+            int i = start;
+            while (i < end)
+            {
+                State current = states[state];
+                boolean first = (i == start);
+                Dfa dfa = first? current.first: current.rest;
+                long match = dfa.match(text, i, end);
+                if (match < 0)
+                {
+                    i++;
+                    continue;
+                }
+
+                if (current.type != NONE)
+                    tokens.add(run, i, current.type);
+
+                int rule = first? current.firstRules[(int) (match >>> 32)]:
+                    current.restRules[(int) (match >>> 32)];
+                int next = (int) match;
+                int type = current.types[rule];
+                if (type == WORD_TYPE)
+                    type = word(text, i, next);
+
+                if (type != NONE)
+                    tokens.add(i, next, type);
+
+                if (current.nexts[rule] >= 0)
+                    state = current.nexts[rule];
+
+                i = next;
+                run = next;
+            }
+
+            if (states[state].type != NONE)
+                tokens.add(run, end, states[state].type);
+
+            return state;
+        }
+
+        // word
+        private int word(CharSequence text, int start, int end)
+        {
+            if (keywords.contains(text, start, end))
+                return KEYWORD;
+
+            if (types.contains(text, start, end))
+                return TYPE;
+
+            if (constants.contains(text, start, end))
+                return CONSTANT;
+
+            return NONE;
+        }
+    }
+}
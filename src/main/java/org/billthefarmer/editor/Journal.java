@@ -0,0 +1,586 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Journal class
+//
+// A log of the edits made to a file since it was last saved, each one
+// an offset, the number of chars deleted, and the chars inserted. Each
+// file has its own journal in the folder, named from a hash of its
+// path. The edits are kept in memory and written in batches, on their
+// own thread, and forced to storage each time. If the app is killed
+// before the file is saved, the edits are replayed on the file next
+// time it is opened, if it hasn't changed. Edits are numbered in
+// order as they are written, and saving the file drops the edits up
+// to the one it includes.
+public class Journal
+{
+    private final static String TAG = "Journal";
+
+    private final static int MAGIC = 0x4a524e4c;
+    private final static int VERSION = 1;
+
+    private final static ScheduledExecutorService EXECUTOR =
+        Executors.newSingleThreadScheduledExecutor();
+
+    private final File folder;
+
+    // Edits not yet written, and where to, swapped out under the lock
+    private final Object lock = new Object();
+    private List<Edit> batch = new ArrayList<>();
+    private File batchStore;
+    private int batchChars;
+    private boolean scheduled;
+
+    // Only used on the UI thread
+    private File store;
+    private boolean active;
+    private int count;
+
+    // Only used on the journal thread, the journal written to, the
+    // number of the last edit in it, and of the last before start or
+    // resume
+    private File current;
+    private int written;
+    private int base;
+
+    // Journal
+    public Journal(File folder)
+    {
+        this.folder = folder;
+    }
+
+    // recover
+    //
+    // Passes the edits for the file to the listener, on the journal
+    // thread, if there are any and the file is as it was when they
+    // were made, or null. Any writes queued before are done first.
+    public void recover(String path, long length, long modified,
+                        RecoverListener listener)
+    {
+        File file = getStore(path);
+        EXECUTOR.execute(() ->
+        {
+            List<Edit> edits = null;
+            try
+            {
+                edits = read(file, path, length, modified);
+            }
+
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+
+            listener.onRecover(edits);
+        });
+    }
+
+    // resume
+    //
+    // Carries on recording edits to the journal there is, after the
+    // activity has been recreated with the text as it was
+    public void resume(String path, long length, long modified)
+    {
+        File file = swap(getStore(path));
+        count = 0;
+        active = true;
+        EXECUTOR.execute(() ->
+        {
+            try
+            {
+                List<Edit> edits = read(file, path, length, modified);
+                if (edits != null)
+                {
+                    current = file;
+                    written = edits.isEmpty()? 0:
+                        edits.get(edits.size() - 1).sequence;
+                    base = written;
+                    return;
+                }
+            }
+
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+
+            begin(file, path, length, modified);
+        });
+    }
+
+    // start
+    //
+    // Starts a new journal for the file as it is now
+    public void start(String path, long length, long modified)
+    {
+        File file = swap(getStore(path));
+        count = 0;
+        active = true;
+        EXECUTOR.execute(() -> begin(file, path, length, modified));
+    }
+
+    // stop
+    //
+    // Stops recording edits, the journal so far is kept
+    public void stop()
+    {
+        active = false;
+        flush();
+    }
+
+    // clear
+    //
+    // Stops recording edits, and throws the journal for the current
+    // file away
+    public void clear()
+    {
+        active = false;
+        File file = store;
+        synchronized (lock)
+        {
+            batch = new ArrayList<>();
+            batchChars = 0;
+        }
+
+        if (file == null)
+            return;
+
+        EXECUTOR.execute(() ->
+        {
+            if (file.equals(current))
+                current = null;
+
+            file.delete();
+        });
+    }
+
+    // getSequence
+    //
+    // Returns the number of edits recorded since the journal was
+    // started or resumed
+    public int getSequence()
+    {
+        return count;
+    }
+
+    // record
+    //
+    // Adds an edit, replacing deleted chars at offset with the text
+    // from start to end
+    public void record(int offset, int deleted, CharSequence text,
+                       int start, int end)
+    {
+        if (!active)
+            return;
+
+        count++;
+        Edit edit = new Edit(0, offset, deleted,
+                             text.subSequence(start, end).toString());
+        synchronized (lock)
+        {
+            batch.add(edit);
+            batchChars += end - start;
+
+            // Write soon, or now if there is a lot
+            if (batchChars * 2 >= Constants.JOURNAL_BATCH)
+            {
+                scheduled = true;
+                EXECUTOR.execute(this::write);
+            }
+
+            else if (!scheduled)
+            {
+                scheduled = true;
+                EXECUTOR.schedule(this::write, Constants.JOURNAL_DELAY,
+                                  TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // flush
+    //
+    // Writes the edits so far now, rather than waiting
+    public void flush()
+    {
+        EXECUTOR.execute(this::write);
+    }
+
+    // compact
+    //
+    // Drops the edits up to sequence, counted from start or resume,
+    // which have been saved, and starts again from the file as saved
+    public void compact(int sequence, String path, long length,
+                        long modified)
+    {
+        if (!active)
+            return;
+
+        File file = store;
+        EXECUTOR.execute(() ->
+        {
+            write();
+
+            // Another file's journal since
+            if (!file.equals(current))
+                return;
+
+            File temp = new File(file.getPath() + Constants.TEMP_EXT);
+            try
+            {
+                List<byte[]> records = new ArrayList<>();
+                List<Edit> edits = readEdits(file, records);
+                writeHeader(temp, path, length, modified);
+                try (FileOutputStream out = new FileOutputStream(temp, true))
+                {
+                    for (int i = 0; i < edits.size(); i++)
+                        if (edits.get(i).sequence > base + sequence)
+                            out.write(records.get(i));
+
+                    out.getChannel().force(false);
+                }
+
+                if (!temp.renameTo(file))
+                    throw new IOException(file.getPath());
+            }
+
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                temp.delete();
+            }
+        });
+    }
+
+    // getStore
+    //
+    // Returns the journal for the file, named from a hash of its path
+    private File getStore(String path)
+    {
+        StringBuilder name = new StringBuilder();
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (byte b : digest.digest(path.getBytes(StandardCharsets.UTF_8)))
+                name.append(String.format("%02x", b));
+        }
+
+        catch (NoSuchAlgorithmException e)
+        {
+            name.append(Integer.toHexString(path.hashCode()));
+        }
+
+        return new File(folder, name.toString());
+    }
+
+    // swap
+    //
+    // Makes file the journal written to, writing any edits still in
+    // the batch to the one before, and returns it
+    private File swap(File file)
+    {
+        List<Edit> edits;
+        File last;
+        synchronized (lock)
+        {
+            edits = batch;
+            last = batchStore;
+            batch = new ArrayList<>();
+            batchStore = file;
+            batchChars = 0;
+        }
+
+        store = file;
+        if (!edits.isEmpty() && last != null)
+            EXECUTOR.execute(() -> append(last, edits));
+
+        return file;
+    }
+
+    // write
+    //
+    // Appends the batch to the journal, on the journal thread
+    private void write()
+    {
+        List<Edit> edits;
+        File file;
+        synchronized (lock)
+        {
+            scheduled = false;
+            if (batch.isEmpty())
+                return;
+
+            edits = batch;
+            file = batchStore;
+            batch = new ArrayList<>();
+            batchChars = 0;
+        }
+
+        append(file, edits);
+    }
+
+    // append
+    //
+    // Numbers the edits, and appends them to the file, if it is the
+    // journal there is, on the journal thread
+    private void append(File file, List<Edit> edits)
+    {
+        if (!file.equals(current))
+            return;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        try
+        {
+            for (Edit edit : edits)
+            {
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(record);
+                out.writeInt(++written);
+                out.writeInt(edit.offset);
+                out.writeInt(edit.deleted);
+                out.writeInt(edit.text.length());
+                out.writeChars(edit.text);
+
+                CRC32 crc = new CRC32();
+                crc.update(record.toByteArray());
+
+                data.writeInt(record.size());
+                record.writeTo(data);
+                data.writeInt((int) crc.getValue());
+            }
+        }
+
+        catch (IOException e)
+        {
+            return;
+        }
+
+        try (FileOutputStream out = new FileOutputStream(file, true))
+        {
+            bytes.writeTo(out);
+            out.getChannel().force(false);
+        }
+
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    // begin
+    //
+    // Starts the file with a header, and makes it the journal there
+    // is, on the journal thread
+    private void begin(File file, String path, long length, long modified)
+    {
+        current = null;
+        folder.mkdirs();
+        try
+        {
+            writeHeader(file, path, length, modified);
+        }
+
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return;
+        }
+
+        current = file;
+        written = 0;
+        base = 0;
+    }
+
+    // writeHeader
+    private static void writeHeader(File file, String path, long length,
+                                    long modified) throws IOException
+    {
+        try (FileOutputStream out = new FileOutputStream(file))
+        {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeUTF(path);
+            data.writeLong(length);
+            data.writeLong(modified);
+            data.flush();
+            out.getChannel().force(false);
+        }
+    }
+
+    // read
+    private static List<Edit> read(File file, String path, long length,
+                                   long modified) throws IOException
+    {
+        if (!file.exists())
+            return null;
+
+        try (DataInputStream in = new DataInputStream
+             (new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                !in.readUTF().equals(path) || in.readLong() != length ||
+                in.readLong() != modified)
+                return null;
+        }
+
+        catch (EOFException e)
+        {
+            return null;
+        }
+
+        return readEdits(file, null);
+    }
+
+    // readEdits
+    //
+    // Reads the edits, up to the end or the first that wasn't all
+    // written, and their records if wanted
+    private static List<Edit> readEdits(File file, List<byte[]> records)
+        throws IOException
+    {
+        List<Edit> edits = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream
+             (new BufferedInputStream(new FileInputStream(file))))
+        {
+            in.readInt();
+            in.readInt();
+            in.readUTF();
+            in.readLong();
+            in.readLong();
+
+            while (true)
+            {
+                int size = in.readInt();
+                if (size < 16 || size > file.length())
+                    break;
+
+                byte[] bytes = new byte[size];
+                in.readFully(bytes);
+                int check = in.readInt();
+
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if (check != (int) crc.getValue())
+                    break;
+
+                DataInputStream data = new DataInputStream
+                    (new ByteArrayInputStream(bytes));
+                int sequence = data.readInt();
+                int offset = data.readInt();
+                int deleted = data.readInt();
+                int count = data.readInt();
+                if (count * 2 != size - 16)
+                    break;
+
+                char[] chars = new char[count];
+                for (int i = 0; i < count; i++)
+                    chars[i] = data.readChar();
+
+                edits.add(new Edit(sequence, offset, deleted,
+                                   new String(chars)));
+
+                if (records != null)
+                {
+                    ByteArrayOutputStream record =
+                        new ByteArrayOutputStream(size + 8);
+                    DataOutputStream out = new DataOutputStream(record);
+                    out.writeInt(size);
+                    out.write(bytes);
+                    out.writeInt(check);
+                    records.add(record.toByteArray());
+                }
+            }
+        }
+
+        // A record cut short by a crash
+        catch (EOFException e)
+        {
+        }
+
+        return edits;
+    }
+
+    // Edit class
+    public static class Edit
+    {
+        private final int sequence;
+        private final int offset;
+        private final int deleted;
+        private final String text;
+
+        // Edit
+        private Edit(int sequence, int offset, int deleted, String text)
+        {
+            this.sequence = sequence;
+            this.offset = offset;
+            this.deleted = deleted;
+            this.text = text;
+        }
+
+        // getOffset
+        public int getOffset()
+        {
+            return offset;
+        }
+
+        // getDeleted
+        public int getDeleted()
+        {
+            return deleted;
+        }
+
+        // getText
+        public String getText()
+        {
+            return text;
+        }
+    }
+
+    // RecoverListener
+    public interface RecoverListener
+    {
+        // onRecover
+        void onRecover(List<Edit> edits);
+    }
+}
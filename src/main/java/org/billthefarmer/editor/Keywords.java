@@ -0,0 +1,145 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+// Keywords class
+//
+// A set of words held as a char trie packed into arrays. Looking up a
+// word reads each char once and does a binary search of the branches
+// at each node, without creating a string. The trie is never changed
+// once built, so it can be shared between threads.
+public class Keywords
+{
+    private final static String TAG = "Keywords";
+
+    // Nodes, each with a range of branches
+    private final int[] firsts;
+    private final int[] lasts;
+    private final boolean[] words;
+
+    // Branches, sorted by char within each node
+    private final char[] chars;
+    private final int[] nodes;
+
+    private final boolean ignoreCase;
+    private final int maxLength;
+
+    // Keywords
+    public Keywords(String[] list, boolean ignoreCase)
+    {
+        this.ignoreCase = ignoreCase;
+
+        // Build a tree
+        Node root = new Node();
+        int max = 0;
+        int count = 1;
+        for (String word: list)
+        {
+            if (ignoreCase)
+                word = word.toLowerCase(Locale.ROOT);
+
+            Node node = root;
+            for (int i = 0; i < word.length(); i++)
+            {
+                Node next = node.branches.get(word.charAt(i));
+                if (next == null)
+                {
+                    next = new Node();
+                    node.branches.put(word.charAt(i), next);
+                    count++;
+                }
+
+                node = next;
+            }
+
+            node.word = true;
+            max = Math.max(max, word.length());
+        }
+
+        maxLength = max;
+
+        // Pack it, breadth first, so each node's branches are together
+        firsts = new int[count];
+        lasts = new int[count];
+        words = new boolean[count];
+        chars = new char[count - 1];
+        nodes = new int[count - 1];
+
+        List<Node> queue = new ArrayList<>();
+        queue.add(root);
+        int branch = 0;
+        for (int n = 0; n < queue.size(); n++)
+        {
+            Node node = queue.get(n);
+            words[n] = node.word;
+            firsts[n] = branch;
+            for (char c: node.branches.keySet())
+            {
+                chars[branch] = c;
+                nodes[branch++] = queue.size();
+                queue.add(node.branches.get(c));
+            }
+
+            lasts[n] = branch;
+        }
+    }
+
+    // contains
+    //
+    // Returns true if the text between start and end is a word in
+    // the set
+    public boolean contains(CharSequence text, int start, int end)
+    {
+        if (end - start > maxLength || start == end)
+            return false;
+
+        int node = 0;
+        for (int i = start; i < end; i++)
+        {
+            char c = text.charAt(i);
+            if (ignoreCase && c >= 'A' && c <= 'Z')
+                c += 'a' - 'A';
+
+            int branch = Arrays.binarySearch(chars, firsts[node],
+                                             lasts[node], c);
+            if (branch < 0)
+                return false;
+
+            node = nodes[branch];
+        }
+
+        return words[node];
+    }
+
+    // Node class, only used while building
+    private static class Node
+    {
+        private final TreeMap<Character, Node> branches = new TreeMap<>();
+        private boolean word;
+    }
+}
@@ -0,0 +1,1056 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+// Lexer class
+//
+// Scans the text once, a line at a time, adding a token for each
+// thing to be highlighted. This replaces matching a list of patterns
+// over the text one after the other, where later patterns overwrote
+// earlier ones. The state passed from line to line says where the
+// lexer was at the end of the last line, such as inside a comment.
+public abstract class Lexer
+{
+    private final static String TAG = "Lexer";
+
+    // Token types
+    public final static int NONE = 0;
+    public final static int KEYWORD = 1;
+    public final static int TYPE = 2;
+    public final static int CLASS = 3;
+    public final static int NUMBER = 4;
+    public final static int ANNOTATION = 5;
+    public final static int CONSTANT = 6;
+    public final static int OPERATOR = 7;
+    public final static int COMMENT = 8;
+    public final static int STRING = 9;
+    public final static int ELEMENT = 10;
+    public final static int ATTRIBUTE = 11;
+    public final static int HEX = 12;
+    public final static int HEADER = 13;
+    public final static int EMPHASIS = 14;
+    public final static int LINK = 15;
+    public final static int CODE = 16;
+    public final static int VARIABLE = 17;
+
+    // States
+    public final static int NORMAL = 0;
+    protected final static int BLOCK_COMMENT = 1;
+    protected final static int QUOTED = 2;
+
+    // getLexer
+    public static Lexer getLexer(int syntax)
+    {
+        switch (syntax)
+        {
+        case Constants.CC_SYNTAX:
+            return new Code(Code.TYPED | Code.ANNOTATED |
+                            Code.OPERATORS | Code.C_COMMENTS);
+
+        case Constants.HTML_SYNTAX:
+            return new Html();
+
+        case Constants.CSS_SYNTAX:
+            return new Css();
+
+        case Constants.ORG_SYNTAX:
+            return new Org();
+
+        case Constants.MD_SYNTAX:
+            return new Markdown();
+
+        case Constants.SH_SYNTAX:
+            return new Code(Code.OPERATORS | Code.SH_COMMENTS |
+                            Code.VARIABLES | Code.LONG_STRINGS);
+
+        case Constants.DEF_SYNTAX:
+            return new Code(Code.TYPED | Code.LONG_STRINGS);
+        }
+
+        return null;
+    }
+
+    // lex
+    //
+    // Adds the tokens between start, which must be the start of a
+    // line, and end, and returns the state at end
+    public int lex(CharSequence text, int start, int end, int state,
+                   Tokens tokens)
+    {
+        while (start < end)
+        {
+            int next = lineEnd(text, start, end);
+            state = lexLine(text, start, next, state, tokens);
+            start = next + 1;
+        }
+
+        return state;
+    }
+
+    // lexLine
+    //
+    // Adds the tokens on one line, not including the newline
+    protected abstract int lexLine(CharSequence text, int start, int end,
+                                   int state, Tokens tokens);
+
+    // lineEnd
+    protected static int lineEnd(CharSequence text, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+            if (text.charAt(i) == '\n')
+                return i;
+
+        return end;
+    }
+
+    // find
+    //
+    // Returns the index of string, or -1
+    protected static int find(CharSequence text, String string,
+                              int start, int end)
+    {
+        int last = end - string.length();
+        for (int i = start; i <= last; i++)
+            if (startsWith(text, string, i, end))
+                return i;
+
+        return -1;
+    }
+
+    // find
+    protected static int find(CharSequence text, char c, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+            if (text.charAt(i) == c)
+                return i;
+
+        return -1;
+    }
+
+    // startsWith
+    protected static boolean startsWith(CharSequence text, String string,
+                                        int index, int end)
+    {
+        if (index + string.length() > end)
+            return false;
+
+        for (int i = 0; i < string.length(); i++)
+            if (text.charAt(index + i) != string.charAt(i))
+                return false;
+
+        return true;
+    }
+
+    // isWord
+    protected static boolean isWord(char c)
+    {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    // wordEnd
+    protected static int wordEnd(CharSequence text, int start, int end)
+    {
+        while (start < end && isWord(text.charAt(start)))
+            start++;
+
+        return start;
+    }
+
+    // charAt
+    //
+    // Returns the char at index, or zero outside the range
+    protected static char charAt(CharSequence text, int index, int end)
+    {
+        return (index >= 0 && index < end)? text.charAt(index): 0;
+    }
+
+    // quoted
+    //
+    // Returns the index after the closing double quote, or -1
+    protected static int quoted(CharSequence text, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            char c = text.charAt(i);
+            if (c == '\\')
+                i++;
+
+            else if (c == '"')
+                return i + 1;
+        }
+
+        return -1;
+    }
+
+    // number
+    //
+    // Returns the end of a number at start, or -1 if the word isn't
+    // a number
+    protected static int number(CharSequence text, int start, int end)
+    {
+        int i = digits(text, start, end);
+        if (charAt(text, i, end) == '.')
+            i = digits(text, i + 1, end);
+
+        if (charAt(text, i, end) == 'e')
+        {
+            int j = i + 1;
+            char c = charAt(text, j, end);
+            if (c == '+' || c == '-')
+                j++;
+
+            if (Character.isDigit(charAt(text, j, end)))
+                i = digits(text, j, end);
+        }
+
+        return isWord(charAt(text, i, end))? -1: i;
+    }
+
+    // digits
+    private static int digits(CharSequence text, int start, int end)
+    {
+        while (start < end && Character.isDigit(text.charAt(start)))
+            start++;
+
+        return start;
+    }
+
+    // isConstant
+    //
+    // Words in capitals, or a k followed by a capital
+    protected static boolean isConstant(CharSequence text, int start, int end)
+    {
+        if (end - start < 2)
+            return false;
+
+        char c = text.charAt(start);
+        if (c == 'k' && isUpper(text.charAt(start + 1)) && end - start > 2)
+        {
+            for (int i = start + 2; i < end; i++)
+            {
+                c = text.charAt(i);
+                if (!isUpper(c) && !isLower(c) && !isDigit(c))
+                    return false;
+            }
+
+            return true;
+        }
+
+        if (!isUpper(c))
+            return false;
+
+        for (int i = start + 1; i < end; i++)
+        {
+            c = text.charAt(i);
+            if (!isUpper(c) && !isDigit(c) && c != '_')
+                return false;
+        }
+
+        return true;
+    }
+
+    // isClass
+    //
+    // Capitalised words
+    protected static boolean isClass(CharSequence text, int start, int end)
+    {
+        if (end - start < 2 || !isUpper(text.charAt(start)))
+            return false;
+
+        for (int i = start + 1; i < end; i++)
+        {
+            char c = text.charAt(i);
+            if (!isUpper(c) && !isLower(c) && !isDigit(c) && c != '_')
+                return false;
+        }
+
+        return true;
+    }
+
+    // isUpper
+    private static boolean isUpper(char c)
+    {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    // isLower
+    private static boolean isLower(char c)
+    {
+        return c >= 'a' && c <= 'z';
+    }
+
+    // isDigit
+    private static boolean isDigit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    // emphasis
+    //
+    // Returns the end of text between matching runs of the marker
+    // chars, or -1
+    protected static int emphasis(CharSequence text, int start, int end,
+                                  String markers, int max)
+    {
+        int i = start;
+        while (i < end && i - start < max &&
+               markers.indexOf(text.charAt(i)) >= 0)
+            i++;
+
+        int n = i - start;
+        if (!isWord(charAt(text, i, end)))
+            return -1;
+
+        for (i++; i < end; i++)
+        {
+            char c = text.charAt(i);
+            if (markers.indexOf(c) >= 0)
+            {
+                if (!isWord(text.charAt(i - 1)) || i + n > end)
+                    return -1;
+
+                for (int j = 0; j < n; j++)
+                    if (text.charAt(i + j) != text.charAt(start + j))
+                        return -1;
+
+                return i + n;
+            }
+
+            if (!isWord(c) && c != ' ')
+                return -1;
+        }
+
+        return -1;
+    }
+
+    // underline
+    //
+    // Returns the end of text between matching runs of one or two
+    // underscores, or -1
+    protected static int underline(CharSequence text, int start, int end)
+    {
+        if (isWord(charAt(text, start - 1, end)))
+            return -1;
+
+        int n = (charAt(text, start + 1, end) == '_')? 2: 1;
+        for (int i = start + n + 1; i < end; i++)
+        {
+            char c = text.charAt(i);
+            if (c == '_' && startsWith(text, (n == 2)? "__": "_", i, end) &&
+                !isWord(charAt(text, i + n, end)))
+                return i + n;
+
+            if (!isWord(c) && c != ' ')
+                return -1;
+        }
+
+        return -1;
+    }
+
+    // Code class
+    //
+    // C type languages, shell scripts and the default
+    private static class Code extends Lexer
+    {
+        private final static int TYPED = 1;
+        private final static int ANNOTATED = 2;
+        private final static int OPERATORS = 4;
+        private final static int C_COMMENTS = 8;
+        private final static int SH_COMMENTS = 16;
+        private final static int VARIABLES = 32;
+        private final static int LONG_STRINGS = 64;
+
+        private final static String OPERATOR_CHARS = "+-=:;<>|!%^&*/?";
+
+        private final static Keywords KEYWORDS =
+            new Keywords(Constants.KEYWORDS, false);
+        private final static Keywords TYPES =
+            new Keywords(Constants.TYPES, false);
+
+        private final int flags;
+
+        // Code
+        private Code(int flags)
+        {
+            this.flags = flags;
+        }
+
+        // lexLine
+        @Override
+        protected int lexLine(CharSequence text, int start, int end,
+                              int state, Tokens tokens)
+        {
+            int i = start;
+
+            // Carry on from the last line
+            if (state == BLOCK_COMMENT)
+            {
+                int j = find(text, "*/", i, end);
+                if (j < 0)
+                {
+                    tokens.add(i, end, COMMENT);
+                    return BLOCK_COMMENT;
+                }
+
+                tokens.add(i, j + 2, COMMENT);
+                i = j + 2;
+            }
+
+            else if (state == QUOTED)
+            {
+                int j = quoted(text, i, end);
+                if (j < 0)
+                {
+                    tokens.add(i, end, STRING);
+                    return QUOTED;
+                }
+
+                tokens.add(i, j, STRING);
+                i = j;
+            }
+
+            while (i < end)
+            {
+                char c = text.charAt(i);
+                char next = charAt(text, i + 1, end);
+
+                // Comments
+                if (c == '/' && next == '/' && has(C_COMMENTS) ||
+                    c == '#' && has(SH_COMMENTS))
+                {
+                    tokens.add(i, end, COMMENT);
+                    return NORMAL;
+                }
+
+                else if (c == '/' && next == '*' && has(C_COMMENTS))
+                {
+                    int j = find(text, "*/", i + 2, end);
+                    if (j < 0)
+                    {
+                        tokens.add(i, end, COMMENT);
+                        return BLOCK_COMMENT;
+                    }
+
+                    tokens.add(i, j + 2, COMMENT);
+                    i = j + 2;
+                }
+
+                // Strings
+                else if (c == '"')
+                {
+                    int j = quoted(text, i + 1, end);
+                    if (j < 0 && has(LONG_STRINGS))
+                    {
+                        tokens.add(i, end, STRING);
+                        return QUOTED;
+                    }
+
+                    if (j < 0)
+                        i++;
+
+                    else
+                    {
+                        tokens.add(i, j, STRING);
+                        i = j;
+                    }
+                }
+
+                // Shell variables
+                else if (c == '$' && has(VARIABLES))
+                {
+                    int j = variable(text, i, end);
+                    tokens.add(i, j, VARIABLE);
+                    i = Math.max(j, i + 1);
+                }
+
+                // Annotations
+                else if (c == '@' && has(ANNOTATED) &&
+                         Character.isLetter(next))
+                {
+                    int j = i + 1;
+                    while (j < end && Character.isLetter(text.charAt(j)))
+                        j++;
+
+                    if (!isWord(charAt(text, j, end)))
+                        tokens.add(i, j, ANNOTATION);
+
+                    i = wordEnd(text, j, end);
+                }
+
+                // Numbers
+                else if (Character.isDigit(c))
+                {
+                    int j = number(text, i, end);
+                    if (j < 0)
+                        i = wordEnd(text, i, end);
+
+                    else
+                    {
+                        tokens.add(i, j, NUMBER);
+                        i = j;
+                    }
+                }
+
+                // Words
+                else if (isWord(c))
+                {
+                    int j = wordEnd(text, i, end);
+                    int type = classify(text, i, j);
+                    if (type != NONE)
+                        tokens.add(i, j, type);
+                    i = j;
+                }
+
+                // Operators, stopping short of a comment
+                else if (has(OPERATORS) && OPERATOR_CHARS.indexOf(c) >= 0)
+                {
+                    int j = i + 1;
+                    while (j < end &&
+                           OPERATOR_CHARS.indexOf(text.charAt(j)) >= 0 &&
+                           !(has(C_COMMENTS) && text.charAt(j) == '/' &&
+                             "/*".indexOf(charAt(text, j + 1, end)) >= 0))
+                        j++;
+
+                    tokens.add(i, j, OPERATOR);
+                    i = j;
+                }
+
+                else
+                    i++;
+            }
+
+            return NORMAL;
+        }
+
+        // has
+        private boolean has(int flag)
+        {
+            return (flags & flag) != 0;
+        }
+
+        // classify
+        private int classify(CharSequence text, int start, int end)
+        {
+            if (isConstant(text, start, end))
+                return CONSTANT;
+
+            if (has(TYPED) && isClass(text, start, end))
+                return CLASS;
+
+            if (has(TYPED) && TYPES.contains(text, start, end))
+                return TYPE;
+
+            if (KEYWORDS.contains(text, start, end))
+                return KEYWORD;
+
+            return NONE;
+        }
+
+        // variable
+        //
+        // $name, ${...} or $(...)
+        private int variable(CharSequence text, int start, int end)
+        {
+            char c = charAt(text, start + 1, end);
+            if (isWord(c))
+                return wordEnd(text, start + 1, end);
+
+            int j = -1;
+            if (c == '{')
+                j = find(text, '}', start + 3, end);
+
+            else if (c == '(')
+                j = find(text, ')', start + 3, end);
+
+            return (j < 0)? start: j + 1;
+        }
+    }
+
+    // Html class
+    private static class Html extends Lexer
+    {
+        private final static Keywords TAGS =
+            new Keywords(Constants.HTML_TAGS, true);
+        private final static Keywords ATTRIBUTES =
+            new Keywords(Constants.HTML_ATTRS, false);
+
+        // lexLine
+        @Override
+        protected int lexLine(CharSequence text, int start, int end,
+                              int state, Tokens tokens)
+        {
+            int i = start;
+
+            // Carry on from the last line
+            if (state != NORMAL)
+            {
+                int j = (state == BLOCK_COMMENT)?
+                    find(text, "-->", i, end): quoted(text, i, end);
+                if (j < 0)
+                {
+                    tokens.add(i, end, (state == BLOCK_COMMENT)?
+                               COMMENT: STRING);
+                    return state;
+                }
+
+                if (state == BLOCK_COMMENT)
+                    j += 3;
+
+                tokens.add(i, j, (state == BLOCK_COMMENT)?
+                           COMMENT: STRING);
+                i = j;
+            }
+
+            while (i < end)
+            {
+                char c = text.charAt(i);
+
+                // Comments
+                if (c == '<' && startsWith(text, "<!--", i, end))
+                {
+                    int j = find(text, "-->", i + 4, end);
+                    if (j < 0)
+                    {
+                        tokens.add(i, end, COMMENT);
+                        return BLOCK_COMMENT;
+                    }
+
+                    tokens.add(i, j + 3, COMMENT);
+                    i = j + 3;
+                }
+
+                // Strings
+                else if (c == '"')
+                {
+                    int j = quoted(text, i + 1, end);
+                    if (j < 0)
+                    {
+                        tokens.add(i, end, STRING);
+                        return QUOTED;
+                    }
+
+                    tokens.add(i, j, STRING);
+                    i = j;
+                }
+
+                // Words
+                else if (isWord(c))
+                {
+                    int j = wordEnd(text, i, end);
+                    if (ATTRIBUTES.contains(text, i, j))
+                        tokens.add(i, j, ATTRIBUTE);
+
+                    else if (TAGS.contains(text, i, j))
+                        tokens.add(i, j, ELEMENT);
+                    i = j;
+                }
+
+                else
+                    i++;
+            }
+
+            return NORMAL;
+        }
+    }
+
+    // Css class
+    private static class Css extends Lexer
+    {
+        private final static Keywords STYLES =
+            new Keywords(Constants.CSS_STYLES, false);
+
+        // lexLine
+        @Override
+        protected int lexLine(CharSequence text, int start, int end,
+                              int state, Tokens tokens)
+        {
+            int i = start;
+
+            // Carry on from the last line
+            if (state == BLOCK_COMMENT)
+            {
+                int j = find(text, "*/", i, end);
+                if (j < 0)
+                {
+                    tokens.add(i, end, COMMENT);
+                    return BLOCK_COMMENT;
+                }
+
+                tokens.add(i, j + 2, COMMENT);
+                i = j + 2;
+            }
+
+            while (i < end)
+            {
+                char c = text.charAt(i);
+                char next = charAt(text, i + 1, end);
+
+                // Comments
+                if (c == '/' && next == '/')
+                {
+                    tokens.add(i, end, COMMENT);
+                    return NORMAL;
+                }
+
+                else if (c == '/' && next == '*')
+                {
+                    int j = find(text, "*/", i + 2, end);
+                    if (j < 0)
+                    {
+                        tokens.add(i, end, COMMENT);
+                        return BLOCK_COMMENT;
+                    }
+
+                    tokens.add(i, j + 2, COMMENT);
+                    i = j + 2;
+                }
+
+                // Strings
+                else if (c == '"')
+                {
+                    int j = quoted(text, i + 1, end);
+                    if (j < 0)
+                        i++;
+
+                    else
+                    {
+                        tokens.add(i, j, STRING);
+                        i = j;
+                    }
+                }
+
+                // Hex colours
+                else if (c == '#' && isWord(next))
+                {
+                    int j = wordEnd(text, i + 1, end);
+                    if (isHex(text, i + 1, j))
+                    {
+                        tokens.add(i, j, HEX);
+                        i = j;
+                    }
+
+                    else
+                        i++;
+                }
+
+                // Words
+                else if (isWord(c))
+                {
+                    int j = wordEnd(text, i, end);
+                    if (STYLES.contains(text, i, j))
+                        tokens.add(i, j, KEYWORD);
+                    i = j;
+                }
+
+                else
+                    i++;
+            }
+
+            return NORMAL;
+        }
+
+        // isHex
+        private boolean isHex(CharSequence text, int start, int end)
+        {
+            for (int i = start; i < end; i++)
+                if (Character.digit(text.charAt(i), 16) < 0)
+                    return false;
+
+            return true;
+        }
+    }
+
+    // Org class
+    private static class Org extends Lexer
+    {
+        private final static String MARKERS = "*~/+=";
+
+        // lexLine
+        @Override
+        protected int lexLine(CharSequence text, int start, int end,
+                              int state, Tokens tokens)
+        {
+            // Headers, metadata and comments
+            if (isHeader(text, start, end) ||
+                startsWith(text, "#+", start, end) && end - start > 2)
+            {
+                tokens.add(start, end, HEADER);
+                return NORMAL;
+            }
+
+            if (startsWith(text, "# ", start, end))
+            {
+                tokens.add(start, end, COMMENT);
+                return NORMAL;
+            }
+
+            int i = start;
+            while (i < end)
+            {
+                char c = text.charAt(i);
+                int j = -1;
+
+                // Links
+                if (c == '[' && startsWith(text, "[[", i, end))
+                {
+                    j = find(text, "]]", i + 2, end);
+                    if (j >= 0)
+                        tokens.add(i, j += 2, LINK);
+                }
+
+                // Inline comments
+                else if (c == '@' && startsWith(text, "@@", i, end))
+                {
+                    j = find(text, "@@", i + 2, end);
+                    if (j >= 0)
+                        tokens.add(i, j += 2, COMMENT);
+                }
+
+                // Emphasis
+                else if (MARKERS.indexOf(c) >= 0)
+                {
+                    j = emphasis(text, i, end, MARKERS, Integer.MAX_VALUE);
+                    if (j >= 0)
+                        tokens.add(i, j, EMPHASIS);
+                }
+
+                else if (c == '_')
+                {
+                    j = underline(text, i, end);
+                    if (j >= 0)
+                        tokens.add(i, j, EMPHASIS);
+
+                    else
+                        j = wordEnd(text, i, end);
+                }
+
+                else if (isWord(c))
+                    j = wordEnd(text, i, end);
+
+                i = Math.max(j, i + 1);
+            }
+
+            return NORMAL;
+        }
+
+        // isHeader
+        //
+        // Stars, then spaces, then the header
+        private boolean isHeader(CharSequence text, int start, int end)
+        {
+            int i = start;
+            while (i < end && text.charAt(i) == '*')
+                i++;
+
+            if (i == start || charAt(text, i, end) != ' ')
+                return false;
+
+            while (i < end && text.charAt(i) == ' ')
+                i++;
+
+            return i < end;
+        }
+    }
+
+    // Markdown class
+    private static class Markdown extends Lexer
+    {
+        private final static String MARKERS = "*~";
+
+        // Set if the last line wasn't blank, so a line under it
+        // would make it a header
+        private final static int TEXT = 4;
+
+        // Inside a fenced code block
+        private final static int FENCE = 8;
+
+        // lexLine
+        @Override
+        protected int lexLine(CharSequence text, int start, int end,
+                              int state, Tokens tokens)
+        {
+            int next = (start < end)? TEXT: NORMAL;
+
+            // Fenced code, which ends at the next fence
+            if (startsWith(text, "```", start, end))
+            {
+                tokens.add(start, end, CODE);
+                return ((state & FENCE) != 0)? NORMAL: FENCE;
+            }
+
+            if ((state & FENCE) != 0)
+            {
+                tokens.add(start, end, CODE);
+                return FENCE;
+            }
+
+            // Headers
+            if (isHeader(text, start, end) ||
+                (state & TEXT) != 0 && isUnderline(text, start, end))
+            {
+                tokens.add(start, end, HEADER);
+                return NORMAL;
+            }
+
+            // Indented code
+            if (startsWith(text, "    ", start, end) && end - start > 4)
+            {
+                tokens.add(start, end, CODE);
+                return next;
+            }
+
+            // Link definitions
+            int i = start;
+            while (i < end && text.charAt(i) == ' ')
+                i++;
+
+            if (isDefinition(text, i, end))
+            {
+                tokens.add(i, end, LINK);
+                return next;
+            }
+
+            while (i < end)
+            {
+                char c = text.charAt(i);
+                int j = -1;
+
+                // Links and images
+                if (c == '[' || c == '!' && charAt(text, i + 1, end) == '[')
+                {
+                    j = link(text, i, end);
+                    if (j >= 0)
+                        tokens.add(i, j, LINK);
+                }
+
+                // Inline code
+                else if (c == '`')
+                {
+                    j = find(text, '`', i + 2, end);
+                    if (j >= 0)
+                        tokens.add(i, ++j, CODE);
+                }
+
+                // Emphasis
+                else if (MARKERS.indexOf(c) >= 0)
+                {
+                    j = emphasis(text, i, end, MARKERS, 2);
+                    if (j >= 0)
+                        tokens.add(i, j, EMPHASIS);
+                }
+
+                else if (c == '_')
+                {
+                    j = underline(text, i, end);
+                    if (j >= 0)
+                        tokens.add(i, j, EMPHASIS);
+
+                    else
+                        j = wordEnd(text, i, end);
+                }
+
+                else if (isWord(c))
+                    j = wordEnd(text, i, end);
+
+                i = Math.max(j, i + 1);
+            }
+
+            return next;
+        }
+
+        // isHeader
+        private boolean isHeader(CharSequence text, int start, int end)
+        {
+            int i = start;
+            while (i < end && text.charAt(i) == '#')
+                i++;
+
+            if (i == start || charAt(text, i, end) != ' ')
+                return false;
+
+            while (i < end && text.charAt(i) == ' ')
+                i++;
+
+            return i < end;
+        }
+
+        // isUnderline
+        //
+        // A line of - or = under some text
+        private boolean isUnderline(CharSequence text, int start, int end)
+        {
+            if (start == end)
+                return false;
+
+            char c = text.charAt(start);
+            if (c != '-' && c != '=')
+                return false;
+
+            for (int i = start; i < end; i++)
+                if (text.charAt(i) != c)
+                    return false;
+
+            return true;
+        }
+
+        // isDefinition
+        //
+        // [label]: url
+        private boolean isDefinition(CharSequence text, int start, int end)
+        {
+            if (charAt(text, start, end) != '[')
+                return false;
+
+            int j = find(text, "]:", start + 2, end);
+            if (j < 0 || charAt(text, j + 2, end) != ' ')
+                return false;
+
+            for (int i = j + 2; i < end; i++)
+                if (text.charAt(i) != ' ')
+                    return true;
+
+            return false;
+        }
+
+        // link
+        //
+        // [text](url) or [text][label], with an optional ! for images
+        private int link(CharSequence text, int start, int end)
+        {
+            int i = (text.charAt(start) == '!')? start + 1: start;
+            int j = find(text, ']', i + 2, end);
+            if (j < 0)
+                return -1;
+
+            j++;
+            while (j < end && text.charAt(j) == ' ')
+                j++;
+
+            char c = charAt(text, j, end);
+            if (c != '(' && c != '[')
+                return -1;
+
+            int k = find(text, (c == '(')? ')': ']', j + 2, end);
+            return (k < 0)? -1: k + 1;
+        }
+    }
+}
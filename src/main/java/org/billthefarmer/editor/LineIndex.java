@@ -0,0 +1,295 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.util.Arrays;
+
+// LineIndex class
+//
+// Start offsets of the text lines, held in an int array with a gap at
+// the last edit. Starts before the gap are offsets from the start of
+// the text, starts after the gap are offsets from the end, so an edit
+// only changes the lines it touches, and the lines after it stay
+// correct without being updated. Looking up a line, or the line for
+// an offset, is a binary search.
+//
+// The lexer state at the start of each line is kept alongside, so
+// highlighting can start at any line. States are known for the lines
+// before valid. An edit moves valid back to the edited line, and the
+// states are lexed forward again from there when needed. Once a line
+// is reached, past all the edits, whose new state matches its old
+// one, the states after it are known again.
+public class LineIndex
+{
+    private final static String TAG = "LineIndex";
+
+    private final static int INITIAL_SIZE = 64;
+
+    private int[] starts;
+    private byte[] states;
+    private int gapStart;
+    private int gapEnd;
+
+    private int length;
+
+    // Lines with known states, lines with states that were known
+    // before the edits since, and the last line changed by those edits
+    private int valid = 1;
+    private int known = 1;
+    private int dirty = -1;
+
+    // LineIndex
+    public LineIndex()
+    {
+        starts = new int[INITIAL_SIZE];
+        states = new byte[INITIAL_SIZE];
+        starts[0] = 0;
+        gapStart = 1;
+        gapEnd = starts.length;
+    }
+
+    // LineIndex
+    public LineIndex(char[] text, int length)
+    {
+        this();
+        insert(text, 0, length);
+        this.length = length;
+    }
+
+    // LineIndex
+    public LineIndex(CharSequence text)
+    {
+        this();
+        insert(text, 0, text.length());
+        length = text.length();
+    }
+
+    // getLineCount
+    public int getLineCount()
+    {
+        return starts.length - (gapEnd - gapStart);
+    }
+
+    // length
+    public int length()
+    {
+        return length;
+    }
+
+    // getLineStart
+    public int getLineStart(int line)
+    {
+        if (line < gapStart)
+            return starts[line];
+
+        return length - starts[line + gapEnd - gapStart];
+    }
+
+    // getLineEnd
+    //
+    // Returns the offset after the newline at the end of the line, or
+    // the length of the text for the last line
+    public int getLineEnd(int line)
+    {
+        if (line + 1 >= getLineCount())
+            return length;
+
+        return getLineStart(line + 1);
+    }
+
+    // getLineForOffset
+    public int getLineForOffset(int offset)
+    {
+        int low = 0;
+        int high = getLineCount() - 1;
+
+        while (low < high)
+        {
+            int mid = (low + high + 1) >>> 1;
+            if (getLineStart(mid) <= offset)
+                low = mid;
+
+            else
+                high = mid - 1;
+        }
+
+        return low;
+    }
+
+    // getState
+    //
+    // Returns the lexer state at the start of the line
+    public int getState(int line)
+    {
+        return states[index(line)];
+    }
+
+    // getValidLines
+    //
+    // Returns the number of lines with known states
+    public int getValidLines()
+    {
+        return valid;
+    }
+
+    // setStates
+    //
+    // Sets the states for the lines from line on, which must not be
+    // after the last valid line
+    public void setStates(int line, int[] lineStates)
+    {
+        int count = getLineCount();
+        for (int i = 0; i < lineStates.length && line + i < count; i++)
+        {
+            int index = index(line + i);
+            boolean same = states[index] == lineStates[i];
+            states[index] = (byte) lineStates[i];
+
+            // Past the edits, and the same as before, so the rest are
+            // the same as before
+            if (same && line + i > dirty && line + i < known)
+            {
+                valid = known;
+                dirty = -1;
+                return;
+            }
+        }
+
+        valid = Math.max(valid, Math.min(line + lineStates.length, count));
+        known = Math.max(known, valid);
+    }
+
+    // resetStates
+    public void resetStates()
+    {
+        valid = 1;
+        known = 1;
+        dirty = -1;
+    }
+
+    // index
+    private int index(int line)
+    {
+        return (line < gapStart)? line: line + gapEnd - gapStart;
+    }
+
+    // update
+    //
+    // Follows a text change, taking the arguments passed to
+    // TextWatcher.onTextChanged(), and returns the number of lines
+    // that start inside the new text
+    public int update(CharSequence s, int start, int before, int count)
+    {
+        // Lines up to the one containing the change stay before the
+        // gap, with offsets from the start
+        int line = getLineForOffset(start);
+        moveGap(line + 1);
+
+        // Remove the lines that started inside the deleted text
+        int removed = gapEnd;
+        while (gapEnd < starts.length &&
+               length - starts[gapEnd] <= start + before)
+            gapEnd++;
+        removed = gapEnd - removed;
+
+        // Lines after the gap are offsets from the end, so they are
+        // still correct after this
+        length += count - before;
+
+        // Add the lines that start inside the inserted text
+        int added = gapStart;
+        insert(s, start, start + count);
+        added = gapStart - added;
+
+        // The states after the edited line can't be trusted
+        valid = Math.min(valid, line + 1);
+        if (known > line + 1)
+            known = Math.max(known + added - removed, line + 1);
+        if (dirty > line)
+            dirty = Math.max(dirty + added - removed, line);
+        dirty = Math.max(dirty, line + added + 1);
+
+        return added;
+    }
+
+    // insert
+    //
+    // Adds a line start after each newline in the text between start
+    // and end. Lines go in at the start of the gap, which must be at
+    // the right place.
+    private void insert(char[] text, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+            if (text[i] == '\n')
+                add(i + 1);
+    }
+
+    // insert
+    private void insert(CharSequence text, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+            if (text.charAt(i) == '\n')
+                add(i + 1);
+    }
+
+    // add
+    private void add(int offset)
+    {
+        if (gapStart == gapEnd)
+            grow();
+
+        states[gapStart] = 0;
+        starts[gapStart++] = offset;
+    }
+
+    // moveGap
+    private void moveGap(int line)
+    {
+        // Move lines from before the gap to after it
+        while (gapStart > line)
+        {
+            states[--gapEnd] = states[--gapStart];
+            starts[gapEnd] = length - starts[gapStart];
+        }
+
+        // Move lines from after the gap to before it
+        while (gapStart < line)
+        {
+            states[gapStart] = states[gapEnd];
+            starts[gapStart++] = length - starts[gapEnd++];
+        }
+    }
+
+    // grow
+    private void grow()
+    {
+        int after = starts.length - gapEnd;
+        int size = starts.length * 2;
+        int[] array = Arrays.copyOf(starts, size);
+        System.arraycopy(starts, gapEnd, array, size - after, after);
+        byte[] bytes = Arrays.copyOf(states, size);
+        System.arraycopy(states, gapEnd, bytes, size - after, after);
+        gapEnd = size - after;
+        starts = array;
+        states = bytes;
+    }
+}
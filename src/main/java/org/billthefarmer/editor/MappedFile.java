@@ -0,0 +1,189 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// MappedFile class
+//
+// Read only view of a file of any size. The file is split into pages
+// of about PAGE_SIZE bytes, each ending at a line end, and a page is
+// only mapped and decoded when it is asked for, which is done off the
+// UI thread. A few decoded pages are kept in a least recently used
+// cache.
+public class MappedFile implements Closeable
+{
+    private final static String TAG = "MappedFile";
+
+    public final static int PAGE_SIZE = 65536;
+    public final static int CACHE_PAGES = 8;
+
+    // Longest line searched for a page boundary
+    private final static int LINE_SIZE = 4096;
+
+    private final FileInputStream input;
+    private final FileChannel channel;
+    private final Charset charset;
+    private final long size;
+
+    private final Map<Integer, String> cache;
+
+    // MappedFile
+    public MappedFile(FileInputStream input, Charset charset)
+        throws IOException
+    {
+        this.input = input;
+        this.charset = charset;
+
+        channel = input.getChannel();
+        size = channel.size();
+
+        cache = new LinkedHashMap<Integer, String>(CACHE_PAGES, 0.75f, true)
+        {
+            // removeEldestEntry
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer,
+                                                String> eldest)
+            {
+                return size() > CACHE_PAGES;
+            }
+        };
+    }
+
+    // isSupported
+    //
+    // Pages are split at newline bytes, so the charset must encode
+    // newline as a single byte that can't appear inside a char
+    public static boolean isSupported(Charset charset)
+    {
+        try
+        {
+            ByteBuffer buffer = charset.newEncoder()
+                .encode(CharBuffer.wrap("\n"));
+            return buffer.remaining() == 1 && buffer.get(0) == '\n';
+        }
+
+        catch (Exception e)
+        {
+            return false;
+        }
+    }
+
+    // size
+    public long size()
+    {
+        return size;
+    }
+
+    // pages
+    public int pages()
+    {
+        return (int) Math.max((size + PAGE_SIZE - 1) / PAGE_SIZE, 1);
+    }
+
+    // getPage
+    //
+    // Pages are decoded in the background, so access to the cache is
+    // synchronized
+    public synchronized String getPage(int page) throws IOException
+    {
+        String text = cache.get(page);
+        if (text != null)
+            return text;
+
+        long start = boundary((long) page * PAGE_SIZE);
+        long end = boundary((long) (page + 1) * PAGE_SIZE);
+
+        text = decode(map(start, end - start));
+        cache.put(page, text);
+        return text;
+    }
+
+    // boundary
+    //
+    // Returns the start of the first line at or after position, or
+    // position itself if no line end is found nearby
+    private long boundary(long position) throws IOException
+    {
+        if (position <= 0)
+            return 0;
+
+        if (position >= size)
+            return size;
+
+        ByteBuffer buffer =
+            map(position - 1, Math.min(LINE_SIZE, size - position + 1));
+        for (int i = 0; i < buffer.limit(); i++)
+            if (buffer.get(i) == '\n')
+                return position + i;
+
+        // Don't split a UTF-8 sequence
+        int i = 1;
+        while (i < buffer.limit() && (buffer.get(i) & 0xc0) == 0x80)
+            i++;
+
+        return position + i - 1;
+    }
+
+    // map
+    private MappedByteBuffer map(long position, long length)
+        throws IOException
+    {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    // decode
+    private String decode(ByteBuffer buffer) throws CharacterCodingException
+    {
+        CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        // Drop carriage returns, as the editor does on load
+        String text = decoder.decode(buffer).toString();
+        return (text.indexOf('\r') < 0)? text:
+            text.replace("\r\n", "\n").replace('\r', '\n');
+    }
+
+    // close
+    @Override
+    public synchronized void close() throws IOException
+    {
+        cache.clear();
+        channel.close();
+        input.close();
+    }
+}
@@ -0,0 +1,430 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.text.GetChars;
+
+import java.util.Arrays;
+
+// PieceTable class
+//
+// The document is described by a list of pieces, each of which is a
+// run of chars in either the read only original buffer, which holds
+// the file as loaded, or the append only add buffer, which holds
+// everything typed since. Edits only split or trim pieces, and
+// neither buffer is ever copied. Pieces are found by a binary search
+// of their document offsets, which are brought up to date lazily
+// after an edit. The text view keeps its own copy of the text, which
+// this shadows, so that background tasks can take a snapshot in the
+// time it takes to copy the piece list, rather than copying the text.
+// It saves time, not memory, as the text is held twice while it's
+// edited, and each edit made to both, so the limits on the size of
+// file edited allow for that.
+public class PieceTable implements CharSequence, GetChars
+{
+    private final static String TAG = "PieceTable";
+
+    private final static int ORIGINAL = 0;
+    private final static int ADD = 1;
+
+    private final static int INITIAL_PIECES = 16;
+    private final static int INITIAL_ADD = 1024;
+
+    private char[] original;
+    private int originalLength;
+
+    private char[] add;
+    private int addLength;
+
+    // Pieces, held as parallel arrays to avoid an object per piece
+    private byte[] buffers;
+    private int[] starts;
+    private int[] lengths;
+    private int count;
+
+    // Document offset of each piece, valid for the first indexed
+    private int[] offsets;
+    private int indexed;
+
+    private int length;
+
+    // Set in a snapshot until it first appends, as the add buffer is
+    // shared with the table it was taken from
+    private boolean shared;
+
+    // Last piece found, and its document offset, which makes
+    // sequential access through charAt() constant time
+    private int lastPiece;
+    private int lastOffset;
+
+    // PieceTable
+    public PieceTable()
+    {
+        this(new char[0], 0);
+    }
+
+    // PieceTable
+    public PieceTable(CharSequence text)
+    {
+        this(toChars(text), text.length());
+    }
+
+    // PieceTable
+    //
+    // Takes ownership of the buffer, which must not be modified
+    // afterwards
+    public PieceTable(char[] buffer, int length)
+    {
+        original = buffer;
+        originalLength = length;
+
+        add = new char[INITIAL_ADD];
+
+        buffers = new byte[INITIAL_PIECES];
+        starts = new int[INITIAL_PIECES];
+        lengths = new int[INITIAL_PIECES];
+        offsets = new int[INITIAL_PIECES];
+
+        if (length > 0)
+        {
+            buffers[0] = ORIGINAL;
+            starts[0] = 0;
+            lengths[0] = length;
+            count = 1;
+        }
+
+        this.length = length;
+    }
+
+    // PieceTable
+    //
+    // Shares both buffers with another table, which is safe because
+    // neither buffer is ever overwritten
+    private PieceTable(PieceTable table)
+    {
+        original = table.original;
+        originalLength = table.originalLength;
+
+        add = table.add;
+        addLength = table.addLength;
+
+        buffers = Arrays.copyOf(table.buffers, table.count);
+        starts = Arrays.copyOf(table.starts, table.count);
+        lengths = Arrays.copyOf(table.lengths, table.count);
+        offsets = Arrays.copyOf(table.offsets, table.count);
+        indexed = table.indexed;
+        count = table.count;
+
+        length = table.length;
+        shared = true;
+    }
+
+    // toChars
+    private static char[] toChars(CharSequence text)
+    {
+        char[] chars = new char[text.length()];
+        if (text instanceof String)
+            ((String) text).getChars(0, chars.length, chars, 0);
+
+        else if (text instanceof GetChars)
+            ((GetChars) text).getChars(0, chars.length, chars, 0);
+
+        else
+            for (int i = 0; i < chars.length; i++)
+                chars[i] = text.charAt(i);
+
+        return chars;
+    }
+
+    // snapshot
+    //
+    // Returns an immutable copy of the document in the time it takes
+    // to copy the piece list
+    public PieceTable snapshot()
+    {
+        return new PieceTable(this);
+    }
+
+    // length
+    @Override
+    public int length()
+    {
+        return length;
+    }
+
+    // pieces
+    public int pieces()
+    {
+        return count;
+    }
+
+    // charAt
+    @Override
+    public char charAt(int index)
+    {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("index " + index +
+                                                ", length " + length);
+        int piece = findPiece(index);
+        int offset = starts[piece] + index - lastOffset;
+        return (buffers[piece] == ORIGINAL)? original[offset]: add[offset];
+    }
+
+    // subSequence
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        checkRange(start, end);
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    // getChars
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff)
+    {
+        checkRange(start, end);
+        if (start == end)
+            return;
+
+        int piece = findPiece(start);
+        int offset = start - lastOffset;
+        while (start < end)
+        {
+            int n = Math.min(lengths[piece] - offset, end - start);
+            char[] buffer = (buffers[piece] == ORIGINAL)? original: add;
+            System.arraycopy(buffer, starts[piece] + offset, dest, destoff, n);
+            start += n;
+            destoff += n;
+            offset = 0;
+            piece++;
+        }
+    }
+
+    // toString
+    @Override
+    public String toString()
+    {
+        char[] chars = new char[length];
+        getChars(0, length, chars, 0);
+        return new String(chars);
+    }
+
+    // insert
+    public void insert(int where, CharSequence text)
+    {
+        replace(where, where, text, 0, text.length());
+    }
+
+    // delete
+    public void delete(int start, int end)
+    {
+        replace(start, end, "", 0, 0);
+    }
+
+    // replace
+    public void replace(int start, int end, CharSequence text)
+    {
+        replace(start, end, text, 0, text.length());
+    }
+
+    // replace
+    //
+    // Replaces the range start..end with text.subSequence(tbstart,
+    // tbend), appending the new text to the add buffer
+    public void replace(int start, int end, CharSequence text,
+                        int tbstart, int tbend)
+    {
+        checkRange(start, end);
+
+        // Split at both ends, so the range covers whole pieces
+        int first = split(start);
+        int last = split(end);
+
+        int n = tbend - tbstart;
+        int removed = last - first;
+        int added = (n > 0)? 1: 0;
+
+        // Extend the last piece if it ends where the add buffer ends,
+        // which is the common case when typing
+        if (n > 0 && removed == 0 && first > 0 &&
+            buffers[first - 1] == ADD &&
+            starts[first - 1] + lengths[first - 1] == addLength)
+        {
+            append(text, tbstart, tbend);
+            lengths[first - 1] += n;
+            added = 0;
+        }
+
+        else if (n > 0)
+        {
+            int addStart = addLength;
+            append(text, tbstart, tbend);
+            movePieces(first, last, added);
+            buffers[first] = ADD;
+            starts[first] = addStart;
+            lengths[first] = n;
+        }
+
+        if (added == 0)
+            movePieces(first, last, 0);
+
+        length += n - (end - start);
+
+        // Invalidate the offsets after the edit, and the cached
+        // position
+        indexed = Math.min(indexed, first);
+        lastPiece = 0;
+        lastOffset = 0;
+    }
+
+    // append
+    private void append(CharSequence text, int start, int end)
+    {
+        int n = end - start;
+        if (shared || addLength + n > add.length)
+            add = Arrays.copyOf(add, Math.max(add.length * 2,
+                                              addLength + n));
+        shared = false;
+        if (text instanceof String)
+            ((String) text).getChars(start, end, add, addLength);
+
+        else if (text instanceof GetChars)
+            ((GetChars) text).getChars(start, end, add, addLength);
+
+        else
+            for (int i = start; i < end; i++)
+                add[addLength + i - start] = text.charAt(i);
+
+        addLength += n;
+    }
+
+    // split
+    //
+    // Makes sure a piece boundary exists at offset, and returns the
+    // index of the piece that starts there
+    private int split(int offset)
+    {
+        if (offset == length)
+            return count;
+
+        int piece = findPiece(offset);
+        int within = offset - lastOffset;
+        if (within == 0)
+            return piece;
+
+        movePieces(piece + 1, piece + 1, 1);
+        buffers[piece + 1] = buffers[piece];
+        starts[piece + 1] = starts[piece] + within;
+        lengths[piece + 1] = lengths[piece] - within;
+        lengths[piece] = within;
+        indexed = Math.min(indexed, piece + 1);
+
+        return piece + 1;
+    }
+
+    // movePieces
+    //
+    // Replaces the pieces first..last with room for n new pieces
+    private void movePieces(int first, int last, int n)
+    {
+        int delta = n - (last - first);
+        if (delta == 0)
+            return;
+
+        if (count + delta > buffers.length)
+        {
+            int size = Math.max(buffers.length * 2, count + delta);
+            buffers = Arrays.copyOf(buffers, size);
+            starts = Arrays.copyOf(starts, size);
+            lengths = Arrays.copyOf(lengths, size);
+            offsets = Arrays.copyOf(offsets, size);
+        }
+
+        System.arraycopy(buffers, last, buffers, last + delta, count - last);
+        System.arraycopy(starts, last, starts, last + delta, count - last);
+        System.arraycopy(lengths, last, lengths, last + delta, count - last);
+        count += delta;
+
+        lastPiece = 0;
+        lastOffset = 0;
+    }
+
+    // findPiece
+    //
+    // Returns the piece containing index, leaving its document offset
+    // in lastOffset
+    private int findPiece(int index)
+    {
+        // Sequential access stays in the same or the next piece
+        int piece = lastPiece;
+        if (piece < count && index >= lastOffset)
+        {
+            int end = lastOffset + lengths[piece];
+            if (index < end)
+                return piece;
+
+            if (piece + 1 < count && index < end + lengths[piece + 1])
+            {
+                lastPiece = piece + 1;
+                lastOffset = end;
+                return lastPiece;
+            }
+        }
+
+        // Index the pieces as far as the one containing index
+        int end = (indexed > 0)?
+            offsets[indexed - 1] + lengths[indexed - 1]: 0;
+        while (indexed < count && end <= index)
+        {
+            offsets[indexed] = end;
+            end += lengths[indexed++];
+        }
+
+        // Binary search for the last piece starting at or before index
+        int low = 0;
+        int high = indexed - 1;
+        while (low < high)
+        {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= index)
+                low = mid;
+
+            else
+                high = mid - 1;
+        }
+
+        lastPiece = low;
+        lastOffset = offsets[low];
+
+        return low;
+    }
+
+    // checkRange
+    private void checkRange(int start, int end)
+    {
+        if (start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException("range " + start + ".." +
+                                                end + ", length " + length);
+    }
+}
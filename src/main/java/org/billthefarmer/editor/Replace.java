@@ -0,0 +1,217 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Replace class
+//
+// Replaces all the matches of a query in one pass, building the text
+// from the first match to the end of the last, so it can be put back
+// with one edit. For regex queries, $n in the replacement is group n,
+// and \ quotes the next char, as in Matcher.appendReplacement(). The
+// replacement is parsed once, rather than for every match.
+public class Replace
+{
+    private final static String TAG = "Replace";
+
+    private final Search search;
+
+    // Replacement parts, text or a group number
+    private final String[] texts;
+    private final int[] groups;
+
+    private int start;
+    private int end;
+    private int count;
+    private StringBuilder result;
+
+    // Replace
+    private Replace(Search search, String[] texts, int[] groups)
+    {
+        this.search = search;
+        this.texts = texts;
+        this.groups = groups;
+    }
+
+    // compile
+    //
+    // Returns null if the query isn't a valid regex, throws
+    // IllegalArgumentException if the replacement isn't valid
+    public static Replace compile(String query, String replacement)
+    {
+        Search search = Search.compile(query);
+        if (search == null)
+            return null;
+
+        List<String> texts = new ArrayList<>();
+        List<Integer> groups = new ArrayList<>();
+        if (Search.isLiteral(query))
+        {
+            texts.add(replacement);
+            groups.add(-1);
+        }
+
+        else
+        {
+            int groupCount = search.groupCount();
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < replacement.length(); i++)
+            {
+                char c = replacement.charAt(i);
+                if (c == '\\')
+                {
+                    if (++i == replacement.length())
+                        throw new IllegalArgumentException
+                            ("Character to be escaped is missing");
+
+                    text.append(replacement.charAt(i));
+                }
+
+                else if (c == '$')
+                {
+                    if (++i == replacement.length() ||
+                        !Character.isDigit(replacement.charAt(i)))
+                        throw new IllegalArgumentException
+                            ("Illegal group reference");
+
+                    // The longest number that is a group
+                    int group = replacement.charAt(i) - '0';
+                    if (group > groupCount)
+                        throw new IllegalArgumentException
+                            ("No group " + group);
+
+                    while (i + 1 < replacement.length() &&
+                           Character.isDigit(replacement.charAt(i + 1)))
+                    {
+                        int next = group * 10 +
+                            replacement.charAt(i + 1) - '0';
+                        if (next > groupCount)
+                            break;
+
+                        group = next;
+                        i++;
+                    }
+
+                    texts.add(text.toString());
+                    groups.add(group);
+                    text.setLength(0);
+                }
+
+                else
+                    text.append(c);
+            }
+
+            texts.add(text.toString());
+            groups.add(-1);
+        }
+
+        int[] groupArray = new int[groups.size()];
+        for (int i = 0; i < groupArray.length; i++)
+            groupArray[i] = groups.get(i);
+
+        return new Replace(search, texts.toArray(new String[0]),
+                           groupArray);
+    }
+
+    // replaceAll
+    //
+    // Replaces all the matches in the text, giving up after timeout
+    // milliseconds if the query is a regex. Throws
+    // Search.TimedOutException if it takes too long.
+    public int replaceAll(CharSequence text, long timeout)
+    {
+        if (Search.isLiteral(search.getQuery()))
+            return replaceAll(text);
+
+        String string = text.toString();
+        return Search.watch(() -> replaceAll(string), timeout);
+    }
+
+    // replaceAll
+    //
+    // Replaces all the matches in the text, and returns the number
+    // replaced. The replaced text is from start() to end(). The text
+    // is converted to a string once, as a regex matcher would
+    // otherwise convert it again for every find.
+    public int replaceAll(CharSequence text)
+    {
+        text = text.toString();
+        int length = text.length();
+        result = new StringBuilder();
+        start = 0;
+        end = 0;
+        count = 0;
+
+        int from = 0;
+        while (from <= length && search.find(text, from, length))
+        {
+            if (count == 0)
+                start = search.start();
+
+            else
+                result.append(text, end, search.start());
+
+            for (int i = 0; i < texts.length; i++)
+            {
+                result.append(texts[i]);
+                int group = groups[i];
+                if (group >= 0 && search.start(group) >= 0)
+                    result.append(text, search.start(group),
+                                  search.end(group));
+            }
+
+            end = search.end();
+            from = search.next();
+            count++;
+        }
+
+        return count;
+    }
+
+    // getStart
+    public int getStart()
+    {
+        return start;
+    }
+
+    // getEnd
+    public int getEnd()
+    {
+        return end;
+    }
+
+    // getCount
+    public int getCount()
+    {
+        return count;
+    }
+
+    // getResult
+    //
+    // Returns the text to replace from start to end
+    public CharSequence getResult()
+    {
+        return result;
+    }
+}
@@ -0,0 +1,578 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// Search class
+//
+// A compiled search query. Queries without regex metachars are found
+// by a Boyer-Moore-Horspool search, which skips along the text
+// without creating a Matcher. Regex queries are compiled once and
+// kept in a small cache, so retyping a query or searching again
+// doesn't compile it again.
+//
+// A regex can take a very long time on some text, such as (a+)+$ on a
+// long run of a's. Regex searches read the text through a view that
+// throws TimedOutException once past a deadline, or if the thread is
+// interrupted. Where the regex engine copies the text rather than
+// reading it, as Android's does, a search with a timeout is run on
+// another thread, and given up on if it takes too long. A search
+// given up on can't be stopped, and keeps its thread until it
+// finishes, so another is only refused if all the threads are kept.
+public abstract class Search
+{
+    private final static String TAG = "Search";
+
+    private final static String META_CHARS = "\\^$.|?*+()[]{}";
+
+    // Escapes that never match a line end, including back references
+    private final static String SINGLE_LINE_ESCAPES =
+        "bBdwhAGZzkQEtfae123456789";
+
+    // Compiled patterns, least recently used first
+    private final static Map<String, Pattern> PATTERNS =
+        new LinkedHashMap<String, Pattern>(Constants.PATTERN_CACHE, 0.75f,
+                                           true)
+        {
+            // removeEldestEntry
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,
+                                                Pattern> eldest)
+            {
+                return size() > Constants.PATTERN_CACHE;
+            }
+        };
+
+    // Threads for searches with a timeout, and permits for them, so
+    // a search never waits for a thread. A search that timed out
+    // keeps its permit until it stops, so no more than all the
+    // threads can be taken up by them.
+    private final static ExecutorService WATCHDOG =
+        Executors.newFixedThreadPool(Constants.WATCHDOG_THREADS, runnable ->
+        {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+    private final static Semaphore PERMITS =
+        new Semaphore(Constants.WATCHDOG_THREADS);
+
+    // States of a watched search
+    private final static int WAITING = 0;
+    private final static int RUNNING = 1;
+    private final static int FINISHED = 2;
+    private final static int CANCELLED = 3;
+
+    protected final String query;
+    protected int start;
+    protected int end;
+    protected long timeout;
+
+    // Search
+    protected Search(String query)
+    {
+        this.query = query;
+    }
+
+    // compile
+    //
+    // Returns a search for the query, or null if it is not a valid
+    // regex
+    public static Search compile(String query)
+    {
+        if (isLiteral(query))
+            return new Literal(query);
+
+        Pattern pattern = getPattern(query);
+        return (pattern == null)? null: new Regex(query, pattern);
+    }
+
+    // isLiteral
+    public static boolean isLiteral(String query)
+    {
+        for (int i = 0; i < query.length(); i++)
+            if (META_CHARS.indexOf(query.charAt(i)) >= 0)
+                return false;
+
+        return true;
+    }
+
+    // isSingleLine
+    //
+    // Returns true if the query can only match within a line. A regex
+    // that could match a line end, such as with \n, \s, [^x] or (?s),
+    // or an escape that is hard to tell, is taken to be one that can.
+    public static boolean isSingleLine(String query)
+    {
+        boolean literal = isLiteral(query);
+        for (int i = 0; i < query.length(); i++)
+        {
+            char c = query.charAt(i);
+            if (c == '\n' || c == '\r')
+                return false;
+
+            if (literal)
+                continue;
+
+            char next = (i + 1 < query.length())? query.charAt(i + 1): 0;
+            switch (c)
+            {
+            case '\\':
+                if (Character.isLetterOrDigit(next) &&
+                    SINGLE_LINE_ESCAPES.indexOf(next) < 0)
+                    return false;
+                i++;
+                break;
+
+            case '[':
+                if (next == '^')
+                    return false;
+                break;
+
+            case '(':
+                if (next != '?')
+                    break;
+                for (int j = i + 2; j < query.length() &&
+                         (Character.isLetter(query.charAt(j)) ||
+                          query.charAt(j) == '-'); j++)
+                    if (query.charAt(j) == 's')
+                        return false;
+                break;
+            }
+        }
+
+        return true;
+    }
+
+    // getPattern
+    //
+    // Returns the compiled pattern from the cache, or compiles it, or
+    // returns null if it is not valid
+    public static Pattern getPattern(String regex)
+    {
+        synchronized (PATTERNS)
+        {
+            Pattern pattern = PATTERNS.get(regex);
+            if (pattern != null)
+                return pattern;
+
+            try
+            {
+                pattern = Pattern.compile(regex, Pattern.MULTILINE);
+            }
+
+            catch (PatternSyntaxException e)
+            {
+                return null;
+            }
+
+            PATTERNS.put(regex, pattern);
+            return pattern;
+        }
+    }
+
+    // getQuery
+    public String getQuery()
+    {
+        return query;
+    }
+
+    // setTimeout
+    //
+    // Sets the time in milliseconds a find may take, or 0 for no
+    // limit. Only a regex can take too long.
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    // watch
+    //
+    // Runs a search on another thread, and gives up on it after the
+    // timeout, in milliseconds. Throws TimedOutException if it takes
+    // too long, or the thread is interrupted, or BusyException
+    // straight away if all the threads are in use.
+    public static <T> T watch(Callable<T> search, long timeout)
+    {
+        if (!PERMITS.tryAcquire())
+            throw new BusyException("Search still running");
+
+        AtomicInteger state = new AtomicInteger(WAITING);
+        Future<T> future = WATCHDOG.submit(() ->
+        {
+            if (!state.compareAndSet(WAITING, RUNNING))
+                return null;
+
+            try
+            {
+                return search.call();
+            }
+
+            finally
+            {
+                state.set(FINISHED);
+                PERMITS.release();
+            }
+        });
+
+        try
+        {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+
+            throw new RuntimeException(e.getCause());
+        }
+
+        catch (TimeoutException | InterruptedException e)
+        {
+            boolean timedOut = (e instanceof TimeoutException);
+            if (!timedOut)
+                Thread.currentThread().interrupt();
+
+            // Not started, so it never will be
+            if (state.compareAndSet(WAITING, FINISHED))
+                PERMITS.release();
+
+            // Give up on it, unless it has just finished
+            else if (state.compareAndSet(RUNNING, CANCELLED))
+                future.cancel(true);
+
+            throw new TimedOutException(timedOut? "Timed out":
+                                        "Interrupted");
+        }
+    }
+
+    // find
+    //
+    // Finds the first match between from and to, and returns true if
+    // there is one. Throws TimedOutException if it takes too long or
+    // the thread is interrupted.
+    public abstract boolean find(CharSequence text, int from, int to);
+
+    // start
+    public int start()
+    {
+        return start;
+    }
+
+    // end
+    public int end()
+    {
+        return end;
+    }
+
+    // groupCount
+    public int groupCount()
+    {
+        return 0;
+    }
+
+    // start
+    //
+    // Returns the start of a group in the last match, or -1 if it
+    // didn't match
+    public int start(int group)
+    {
+        return (group == 0)? start: -1;
+    }
+
+    // end
+    public int end(int group)
+    {
+        return (group == 0)? end: -1;
+    }
+
+    // next
+    //
+    // Returns where to look for the match after this one, past it,
+    // or one on from an empty match
+    public int next()
+    {
+        return (end > start)? end: end + 1;
+    }
+
+    // Literal class
+    private static class Literal extends Search
+    {
+        // Shifts by the low byte of the last char in the window.
+        // Chars that share a low byte take the smallest shift.
+        private final int[] shifts = new int[256];
+
+        // Literal
+        private Literal(String query)
+        {
+            super(query);
+
+            int last = query.length() - 1;
+            for (int i = 0; i < shifts.length; i++)
+                shifts[i] = query.length();
+            for (int i = 0; i < last; i++)
+                shifts[query.charAt(i) & 0xff] = last - i;
+        }
+
+        // find
+        @Override
+        public boolean find(CharSequence text, int from, int to)
+        {
+            int length = query.length();
+            int last = length - 1;
+            if (length == 0)
+                return false;
+
+            for (int i = Math.max(from, 0); i <= to - length;)
+            {
+                char c = text.charAt(i + last);
+                if (c == query.charAt(last))
+                {
+                    int j = last - 1;
+                    while (j >= 0 && text.charAt(i + j) == query.charAt(j))
+                        j--;
+
+                    if (j < 0)
+                    {
+                        start = i;
+                        end = i + length;
+                        return true;
+                    }
+                }
+
+                i += shifts[c & 0xff];
+            }
+
+            return false;
+        }
+    }
+
+    // Regex class
+    private static class Regex extends Search
+    {
+        private final Pattern pattern;
+        private Matcher matcher;
+        private CharSequence text;
+        private Deadline input;
+
+        // Where the next find would carry on from, and the end of the
+        // region, after a match
+        private int resume = -1;
+        private int region;
+
+        // Regex
+        private Regex(String query, Pattern pattern)
+        {
+            super(query);
+            this.pattern = pattern;
+        }
+
+        // find
+        @Override
+        public boolean find(CharSequence text, int from, int to)
+        {
+            if (from > to)
+                return false;
+
+            if (matcher == null || this.text != text)
+            {
+                input = new Deadline(text);
+                matcher = pattern.matcher(input);
+                matcher.useTransparentBounds(true);
+                matcher.useAnchoringBounds(false);
+                this.text = text;
+                resume = -1;
+            }
+
+            // Carry on from the last match if that's where to look,
+            // as setting the region resets the matcher, and Android's
+            // copies the text again
+            boolean carry = (from == resume && to == region);
+            resume = -1;
+
+            // A search given up on keeps its own matcher, and doesn't
+            // touch the fields
+            Matcher matcher = this.matcher;
+            Deadline input = this.input;
+            try
+            {
+                boolean found = (timeout <= 0)?
+                    match(matcher, input, from, to, carry):
+                    watch(() -> match(matcher, input, from, to, carry),
+                          timeout);
+                if (!found)
+                    return false;
+            }
+
+            catch (TimedOutException e)
+            {
+                this.matcher = null;
+                this.text = null;
+                throw e;
+            }
+
+            start = matcher.start();
+            end = matcher.end();
+            resume = next();
+            region = to;
+            return true;
+        }
+
+        // match
+        private boolean match(Matcher matcher, Deadline input,
+                              int from, int to, boolean carry)
+        {
+            input.deadline = (timeout > 0)?
+                System.nanoTime() + timeout * 1000000: Long.MAX_VALUE;
+            if (!carry)
+                matcher.region(Math.max(from, 0), to);
+            return matcher.find();
+        }
+
+        // groupCount
+        @Override
+        public int groupCount()
+        {
+            if (matcher == null)
+                return pattern.matcher("").groupCount();
+
+            return matcher.groupCount();
+        }
+
+        // start
+        @Override
+        public int start(int group)
+        {
+            return matcher.start(group);
+        }
+
+        // end
+        @Override
+        public int end(int group)
+        {
+            return matcher.end(group);
+        }
+    }
+
+    // Deadline class
+    //
+    // A view of the text that checks the time and the thread every
+    // so many chars read
+    private static class Deadline implements CharSequence
+    {
+        private final static int CHECK_MASK = 0x3ff;
+
+        private final CharSequence text;
+        private long deadline = Long.MAX_VALUE;
+        private int count;
+
+        // Deadline
+        private Deadline(CharSequence text)
+        {
+            this.text = text;
+        }
+
+        // charAt
+        @Override
+        public char charAt(int index)
+        {
+            if ((++count & CHECK_MASK) == 0)
+            {
+                if (Thread.currentThread().isInterrupted())
+                    throw new TimedOutException("Interrupted");
+
+                if (System.nanoTime() > deadline)
+                    throw new TimedOutException("Timed out");
+            }
+
+            return text.charAt(index);
+        }
+
+        // length
+        @Override
+        public int length()
+        {
+            return text.length();
+        }
+
+        // subSequence
+        @Override
+        public CharSequence subSequence(int start, int end)
+        {
+            return text.subSequence(start, end);
+        }
+
+        // toString
+        @Override
+        public String toString()
+        {
+            return text.toString();
+        }
+    }
+
+    // TimedOutException class
+    //
+    // Thrown when a search takes too long or is interrupted
+    public static class TimedOutException extends RuntimeException
+    {
+        private final static long serialVersionUID = 1L;
+
+        // TimedOutException
+        public TimedOutException(String message)
+        {
+            super(message);
+        }
+    }
+
+    // BusyException class
+    //
+    // Thrown when a search can't be started because the threads are
+    // all still running searches that timed out
+    public static class BusyException extends TimedOutException
+    {
+        private final static long serialVersionUID = 1L;
+
+        // BusyException
+        public BusyException(String message)
+        {
+            super(message);
+        }
+    }
+}
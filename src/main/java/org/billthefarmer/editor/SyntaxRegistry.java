@@ -0,0 +1,286 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// SyntaxRegistry class
+//
+// The syntaxes, built in and from grammars, by file extension and
+// name. Files without a known extension can be matched by a shebang
+// or an Emacs or Vim modeline at the start. Nothing is compiled until
+// a syntax is used, so opening a plain text file costs a few map
+// lookups.
+public class SyntaxRegistry
+{
+    private final static String TAG = "SyntaxRegistry";
+
+    private final static String SHEBANG = "#!";
+    private final static String ENV = "env";
+    private final static String EMACS = "-*-";
+    private final static String MODE = "mode:";
+    private final static String[] VIM = {"vim:", "vi:", "ex:"};
+    private final static String[] VIM_OPTIONS =
+    {
+        "filetype=", "ft=", "syntax=", "syn="
+    };
+
+    private final Map<String, Syntax> builtIn = new HashMap<>();
+    private final Map<String, Syntax> grammars = new HashMap<>();
+    private final Map<String, Syntax> names = new HashMap<>();
+    private final Map<String, String> interpreters = new HashMap<>();
+    private final Map<String, String> modes = new HashMap<>();
+    private final Map<Integer, Syntax> syntaxes = new HashMap<>();
+
+    // SyntaxRegistry
+    public SyntaxRegistry()
+    {
+        add(Constants.CC_SYNTAX, Constants.CC_EXT);
+        add(Constants.HTML_SYNTAX, Constants.HTML_EXT);
+        add(Constants.CSS_SYNTAX, Constants.CSS_EXT);
+        add(Constants.ORG_SYNTAX, Constants.ORG_EXT);
+        add(Constants.MD_SYNTAX, Constants.MD_EXT);
+        add(Constants.SH_SYNTAX, Constants.SH_EXT);
+
+        for (int i = 0; i < Constants.INTERPRETERS.length; i += 2)
+            interpreters.put(Constants.INTERPRETERS[i],
+                             Constants.INTERPRETERS[i + 1]);
+
+        for (int i = 0; i < Constants.MODES.length; i += 2)
+            modes.put(Constants.MODES[i], Constants.MODES[i + 1]);
+    }
+
+    // add
+    private void add(int syntax, String[] extensions)
+    {
+        Syntax added = get(syntax);
+        for (String ext: extensions)
+            builtIn.put(ext, added);
+    }
+
+    // add
+    //
+    // Adds a grammar, replacing any added before for the same
+    // extensions or names. Built in syntaxes come first.
+    public void add(Grammar grammar)
+    {
+        Syntax added = new Syntax(Constants.GRAMMAR_SYNTAX, grammar);
+        for (String ext: grammar.getExtensions())
+            grammars.put("." + ext.toLowerCase(Locale.ROOT), added);
+
+        for (String name: grammar.getFiles())
+            names.put(name, added);
+    }
+
+    // get
+    //
+    // Returns a built in syntax
+    public Syntax get(int syntax)
+    {
+        Syntax result = syntaxes.get(syntax);
+        if (result == null)
+        {
+            result = new Syntax(syntax, null);
+            syntaxes.put(syntax, result);
+        }
+
+        return result;
+    }
+
+    // find
+    //
+    // Returns the syntax for the file name and extension, or null
+    public Syntax find(String name, String ext)
+    {
+        ext = ext.toLowerCase(Locale.ROOT);
+        Syntax result = builtIn.get(ext);
+        if (result != null)
+            return result;
+
+        result = names.get(name);
+        if (result != null)
+            return result;
+
+        return grammars.get(ext);
+    }
+
+    // sniff
+    //
+    // Returns the syntax for a shebang or modeline in the first
+    // FIRST_SIZE chars of the text, or null
+    public Syntax sniff(CharSequence text)
+    {
+        String first = text.subSequence
+            (0, Math.min(text.length(), Constants.FIRST_SIZE)).toString();
+
+        String ext = shebang(first);
+        if (ext == null)
+            ext = modeline(first);
+
+        return (ext == null)? null: find("", ext);
+    }
+
+    // shebang
+    //
+    // Returns the extension for the interpreter in a #! line, such as
+    // #!/bin/bash or #!/usr/bin/env python3
+    private String shebang(String text)
+    {
+        if (!text.startsWith(SHEBANG))
+            return null;
+
+        int end = text.indexOf('\n');
+        String[] words = text.substring(SHEBANG.length(),
+                                        (end < 0)? text.length(): end)
+            .trim().split("\\s+");
+
+        for (String word: words)
+        {
+            String name = word.substring(word.lastIndexOf('/') + 1);
+            if (name.equals(ENV) || name.startsWith("-") ||
+                name.contains("="))
+                continue;
+
+            // Drop any version, python3.11 is python
+            int length = name.length();
+            while (length > 0 && (Character.isDigit(name.charAt(length - 1)) ||
+                                  name.charAt(length - 1) == '.'))
+                length--;
+
+            return interpreters.get(name.substring(0, length));
+        }
+
+        return null;
+    }
+
+    // modeline
+    //
+    // Returns the extension for the mode in an Emacs -*- mode: name -*-
+    // line, or the filetype in a vim: ft=name line
+    private String modeline(String text)
+    {
+        int start = text.indexOf(EMACS);
+        if (start >= 0)
+        {
+            start += EMACS.length();
+            int end = text.indexOf(EMACS, start);
+            if (end >= 0)
+            {
+                String mode = text.substring(start, end).trim();
+                int index = mode.indexOf(MODE);
+                if (index >= 0)
+                {
+                    mode = mode.substring(index + MODE.length());
+                    end = mode.indexOf(';');
+                    if (end >= 0)
+                        mode = mode.substring(0, end);
+                }
+
+                else if (mode.contains(":"))
+                    mode = "";
+
+                return mode(mode.trim());
+            }
+        }
+
+        for (String vim: VIM)
+        {
+            start = text.indexOf(vim);
+            if (start < 0)
+                continue;
+
+            int end = text.indexOf('\n', start);
+            String line = text.substring(start + vim.length(),
+                                         (end < 0)? text.length(): end);
+            for (String option: VIM_OPTIONS)
+            {
+                int index = line.indexOf(option);
+                if (index < 0 || (index > 0 &&
+                                  Character.isLetter(line.charAt(index - 1))))
+                    continue;
+
+                index += option.length();
+                end = index;
+                while (end < line.length() &&
+                       (Character.isLetterOrDigit(line.charAt(end)) ||
+                        line.charAt(end) == '+' || line.charAt(end) == '-'))
+                    end++;
+
+                return mode(line.substring(index, end));
+            }
+        }
+
+        return null;
+    }
+
+    // mode
+    //
+    // Returns the extension for a mode, or the mode as an extension
+    private String mode(String mode)
+    {
+        if (mode.isEmpty())
+            return null;
+
+        mode = mode.toLowerCase(Locale.ROOT);
+        String ext = modes.get(mode);
+        return (ext != null)? ext: "." + mode;
+    }
+
+    // Syntax class
+    //
+    // A built in syntax or a grammar, with its lexer, which is
+    // created the first time it is used
+    public static class Syntax
+    {
+        private final int syntax;
+        private final Grammar grammar;
+        private Lexer lexer;
+
+        // Syntax
+        private Syntax(int syntax, Grammar grammar)
+        {
+            this.syntax = syntax;
+            this.grammar = grammar;
+        }
+
+        // getSyntax
+        public int getSyntax()
+        {
+            return syntax;
+        }
+
+        // getLexer
+        //
+        // Throws IllegalArgumentException if the syntax is a grammar
+        // that can't be compiled
+        public Lexer getLexer()
+        {
+            if (lexer == null)
+                lexer = (grammar != null)? grammar.getLexer():
+                    Lexer.getLexer(syntax);
+
+            return lexer;
+        }
+    }
+}
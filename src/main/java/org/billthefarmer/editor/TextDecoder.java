@@ -0,0 +1,212 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import java.util.Arrays;
+
+// TextDecoder class
+//
+// Decodes a stream in bulk, from one reused byte buffer through one
+// reused char buffer, straight into a growing char array. Line ends
+// are converted to newlines on the way, and the original line end
+// style and any byte order mark are recorded, so they can be put back
+// when the text is written.
+public class TextDecoder
+{
+    private final static String TAG = "TextDecoder";
+
+    public final static int LF = 0;
+    public final static int CRLF = 1;
+    public final static int CR = 2;
+
+    public final static char BOM = '\uFEFF';
+
+    private final static int UNKNOWN = -1;
+
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes;
+    private final CharBuffer chars;
+
+    private char[] buffer;
+    private int length;
+
+    private int ending = UNKNOWN;
+    private boolean bom;
+    private boolean cr;
+    private boolean eof;
+
+    // TextDecoder
+    public TextDecoder(Charset charset, long size)
+    {
+        decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        bytes = ByteBuffer.allocate(Constants.BUFFER_SIZE);
+        chars = CharBuffer.allocate(Constants.BUFFER_SIZE);
+
+        // Most charsets need no more chars than bytes
+        size = Math.min(size, Integer.MAX_VALUE - Constants.BUFFER_SIZE);
+        buffer = new char[(int) Math.max(size, Constants.BUFFER_SIZE)];
+    }
+
+    // read
+    //
+    // Reads and decodes one buffer full, returns false at the end of
+    // the stream
+    public boolean read(InputStream in) throws IOException
+    {
+        if (eof)
+            return false;
+
+        int n = in.read(bytes.array(), bytes.position(), bytes.remaining());
+        if (n > 0)
+            bytes.position(bytes.position() + n);
+
+        eof = (n < 0);
+        bytes.flip();
+
+        CoderResult result;
+        do
+        {
+            result = decoder.decode(bytes, chars, eof);
+            if (result.isError())
+                result.throwException();
+            drain();
+        } while (result.isOverflow());
+
+        bytes.compact();
+
+        if (eof)
+        {
+            do
+            {
+                result = decoder.flush(chars);
+                drain();
+            } while (result.isOverflow());
+
+            // A lone carriage return at the end
+            if (cr && ending == UNKNOWN)
+                ending = CR;
+        }
+
+        return !eof;
+    }
+
+    // drain
+    //
+    // Copies the decoded chars to the buffer, converting line ends
+    private void drain()
+    {
+        char[] array = chars.array();
+        int n = chars.position();
+
+        if (length + n > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2,
+                                                    length + n));
+        int i = 0;
+
+        // Byte order mark
+        if (length == 0 && !bom && n > 0 && array[0] == BOM)
+        {
+            bom = true;
+            i++;
+        }
+
+        for (; i < n; i++)
+        {
+            char c = array[i];
+            switch (c)
+            {
+            case '\r':
+                if (cr && ending == UNKNOWN)
+                    ending = CR;
+                buffer[length++] = '\n';
+                cr = true;
+                break;
+
+            case '\n':
+                if (cr)
+                {
+                    if (ending == UNKNOWN)
+                        ending = CRLF;
+                }
+
+                else
+                {
+                    if (ending == UNKNOWN)
+                        ending = LF;
+                    buffer[length++] = '\n';
+                }
+
+                cr = false;
+                break;
+
+            default:
+                if (cr && ending == UNKNOWN)
+                    ending = CR;
+                buffer[length++] = c;
+                cr = false;
+                break;
+            }
+        }
+
+        chars.clear();
+    }
+
+    // getBuffer
+    //
+    // The buffer may be replaced as it grows, but chars already
+    // decoded are never written again
+    public char[] getBuffer()
+    {
+        return buffer;
+    }
+
+    // length
+    public int length()
+    {
+        return length;
+    }
+
+    // getLineEnding
+    public int getLineEnding()
+    {
+        return (ending == UNKNOWN)? LF: ending;
+    }
+
+    // hasBOM
+    public boolean hasBOM()
+    {
+        return bom;
+    }
+}
@@ -0,0 +1,201 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// TokenCache class
+//
+// The tokens found on each line, kept by line number along with a
+// hash and the length of the line, and the lexer state at the start
+// of the line. A line is only lexed again if it has been edited, or
+// the state at its start has changed, such as when a comment above it
+// is opened or closed. Only a window of CACHE_LINES lines is kept,
+// which follows the lines being lexed, so an edit costs at most the
+// size of the window to move the entries below it up or down. The
+// cache is used from the highlight thread, and updated from the UI
+// thread, so access is synchronized.
+public class TokenCache
+{
+    private final static String TAG = "TokenCache";
+
+    private final static int CACHE_LINES = 4096;
+
+    // Entry layout, followed by start, end, type for each token,
+    // with offsets from the start of the line
+    private final static int HASH = 0;
+    private final static int LENGTH = 1;
+    private final static int STATE = 2;
+    private final static int END_STATE = 3;
+    private final static int TOKENS = 4;
+
+    // Entries for the lines from first on
+    private final List<int[]> entries = new ArrayList<>();
+    private int first;
+
+    // get
+    //
+    // Adds the tokens for the line between start and end, if cached
+    // with the same text and start state, and returns the state at
+    // the end of the line, or -1
+    public synchronized int get(CharSequence text, int line,
+                                int start, int end, int state,
+                                Tokens tokens)
+    {
+        int index = line - first;
+        if (index < 0 || index >= entries.size())
+            return -1;
+
+        int[] entry = entries.get(index);
+        if (entry == null || entry[STATE] != state ||
+            entry[LENGTH] != end - start ||
+            entry[HASH] != hash(text, start, end))
+            return -1;
+
+        for (int i = TOKENS; i < entry.length; i += 3)
+            tokens.add(start + entry[i], start + entry[i + 1], entry[i + 2]);
+
+        return entry[END_STATE];
+    }
+
+    // put
+    //
+    // Caches the tokens from first on, which are those for the line
+    // between start and end
+    public synchronized void put(CharSequence text, int line,
+                                 int start, int end, int state,
+                                 int endState, Tokens tokens, int first)
+    {
+        int[] entry = new int[TOKENS + (tokens.size() - first) * 3];
+        entry[HASH] = hash(text, start, end);
+        entry[LENGTH] = end - start;
+        entry[STATE] = state;
+        entry[END_STATE] = endState;
+
+        for (int i = first, j = TOKENS; i < tokens.size(); i++)
+        {
+            entry[j++] = tokens.getStart(i) - start;
+            entry[j++] = tokens.getEnd(i) - start;
+            entry[j++] = tokens.getType(i);
+        }
+
+        entries.set(slide(line), entry);
+    }
+
+    // slide
+    //
+    // Moves the window to include line, dropping entries from the
+    // other end, and returns its index
+    private int slide(int line)
+    {
+        int index = line - first;
+
+        // Too far to keep anything
+        if (entries.isEmpty() || index <= -CACHE_LINES ||
+            index >= entries.size() + CACHE_LINES)
+        {
+            entries.clear();
+            entries.add(null);
+            first = line;
+            return 0;
+        }
+
+        if (index < 0)
+        {
+            entries.addAll(0, Collections.nCopies(-index, (int[]) null));
+            first = line;
+            index = 0;
+
+            int size = entries.size();
+            if (size > CACHE_LINES)
+                entries.subList(CACHE_LINES, size).clear();
+        }
+
+        else if (index >= entries.size())
+        {
+            entries.addAll(Collections.nCopies(index + 1 - entries.size(),
+                                               (int[]) null));
+            int size = entries.size();
+            if (size > CACHE_LINES)
+            {
+                entries.subList(0, size - CACHE_LINES).clear();
+                first += size - CACHE_LINES;
+                index -= size - CACHE_LINES;
+            }
+        }
+
+        return index;
+    }
+
+    // update
+    //
+    // Follows an edit on line, which removed the lines after it and
+    // added new lines
+    public synchronized void update(int line, int removed, int added)
+    {
+        int index = line - first;
+        int size = entries.size();
+        if (index >= size)
+            return;
+
+        // Above the window, drop any removed lines within it, and
+        // move it
+        if (index < 0)
+        {
+            int gone = Math.min(Math.max(index + removed + 1, 0), size);
+            entries.subList(0, gone).clear();
+            first += gone + added - removed;
+            return;
+        }
+
+        entries.set(index, null);
+
+        int end = Math.min(index + 1 + removed, size);
+        entries.subList(index + 1, end).clear();
+        entries.addAll(index + 1,
+                       Collections.nCopies(Math.min(added, CACHE_LINES),
+                                           (int[]) null));
+
+        size = entries.size();
+        if (size > CACHE_LINES)
+            entries.subList(CACHE_LINES, size).clear();
+    }
+
+    // clear
+    public synchronized void clear()
+    {
+        entries.clear();
+        first = 0;
+    }
+
+    // hash
+    private static int hash(CharSequence text, int start, int end)
+    {
+        int hash = end - start;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + text.charAt(i);
+
+        return hash;
+    }
+}
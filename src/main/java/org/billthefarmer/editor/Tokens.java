@@ -0,0 +1,119 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.util.Arrays;
+
+// Tokens class
+//
+// A list of tokens, in order and not overlapping, held as parallel
+// int arrays to avoid an object per token
+public class Tokens
+{
+    private final static String TAG = "Tokens";
+
+    private final static int INITIAL_SIZE = 64;
+
+    private int[] starts;
+    private int[] ends;
+    private int[] types;
+    private int count;
+
+    // Tokens
+    public Tokens()
+    {
+        starts = new int[INITIAL_SIZE];
+        ends = new int[INITIAL_SIZE];
+        types = new int[INITIAL_SIZE];
+    }
+
+    // add
+    public void add(int start, int end, int type)
+    {
+        if (start >= end)
+            return;
+
+        if (count == starts.length)
+        {
+            int size = count * 2;
+            starts = Arrays.copyOf(starts, size);
+            ends = Arrays.copyOf(ends, size);
+            types = Arrays.copyOf(types, size);
+        }
+
+        starts[count] = start;
+        ends[count] = end;
+        types[count] = type;
+        count++;
+    }
+
+    // clear
+    public void clear()
+    {
+        count = 0;
+    }
+
+    // size
+    public int size()
+    {
+        return count;
+    }
+
+    // search
+    //
+    // Returns the index of the first token that starts at or after
+    // offset
+    public int search(int offset)
+    {
+        int low = 0;
+        int high = count;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] < offset)
+                low = mid + 1;
+
+            else
+                high = mid;
+        }
+
+        return low;
+    }
+
+    // getStart
+    public int getStart(int index)
+    {
+        return starts[index];
+    }
+
+    // getEnd
+    public int getEnd(int index)
+    {
+        return ends[index];
+    }
+
+    // getType
+    public int getType(int index)
+    {
+        return types[index];
+    }
+}
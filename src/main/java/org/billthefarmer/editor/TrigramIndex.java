@@ -0,0 +1,658 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// TrigramIndex class
+//
+// An index of the three char sequences in the files that have been
+// searched, so a search only has to read the files that contain all
+// the trigrams the query needs. For each trigram there is a list of
+// the files it is in, by file id. Files are checked by modified time
+// and size, and a changed file gets a new id, so the lists only ever
+// grow at the end. The old ids are dropped when the index is saved.
+public class TrigramIndex
+{
+    private final static String TAG = "TrigramIndex";
+
+    private final static int MAGIC = 0x54524947;
+    private final static int VERSION = 1;
+
+    private final static int[] EMPTY = {};
+
+    private final File store;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final List<Entry> ids = new ArrayList<>();
+    private final Map<Integer, Postings> postings = new HashMap<>();
+
+    private boolean loaded;
+    private boolean changed;
+
+    // TrigramIndex
+    public TrigramIndex(File store)
+    {
+        this.store = store;
+    }
+
+    // trigram
+    //
+    // Trigrams are case folded, so the index works for case
+    // insensitive searches. Chars are cut to ten bits, which only
+    // adds files that have to be searched.
+    private static int trigram(char a, char b, char c)
+    {
+        return ((Character.toLowerCase(a) & 0x3ff) << 20) |
+            ((Character.toLowerCase(b) & 0x3ff) << 10) |
+            (Character.toLowerCase(c) & 0x3ff);
+    }
+
+    // trigrams
+    //
+    // Returns the trigrams in the text, sorted, without duplicates
+    public static int[] trigrams(char[] text, int length)
+    {
+        if (length < 3)
+            return EMPTY;
+
+        int[] result = new int[length - 2];
+        int count = 0;
+        for (int i = 2; i < length; i++)
+            if (text[i - 2] != '\n' && text[i - 1] != '\n' && text[i] != '\n')
+                result[count++] = trigram(text[i - 2], text[i - 1], text[i]);
+
+        return unique(result, count);
+    }
+
+    // trigrams
+    //
+    // Returns the trigrams every match of the query must contain, or
+    // none if it can't tell. Regex queries are scanned for runs of
+    // literal chars outside groups that aren't optional. Alternatives
+    // and flags give up.
+    public static int[] trigrams(String query)
+    {
+        if (Search.isLiteral(query))
+            return trigrams(query.toCharArray(), query.length());
+
+        List<String> runs = new ArrayList<>();
+        StringBuilder run = new StringBuilder();
+        boolean literal = false;
+        int depth = 0;
+        for (int i = 0; i < query.length(); i++)
+        {
+            char c = query.charAt(i);
+            switch (c)
+            {
+            case '\\':
+                if (++i == query.length())
+                    return EMPTY;
+
+                c = query.charAt(i);
+                // Classes, back references, char codes and quoting,
+                // skipping any argument
+                if (Character.isLetterOrDigit(c))
+                {
+                    if (c == 'Q')
+                        return EMPTY;
+
+                    i = escapeEnd(query, i);
+                    literal = false;
+                    runs.add(run.toString());
+                    run.setLength(0);
+                    break;
+                }
+
+                literal = (depth == 0);
+                if (literal)
+                    run.append(c);
+                break;
+
+            case '[':
+                // Skip the class
+                i++;
+                if (i < query.length() && query.charAt(i) == '^')
+                    i++;
+                if (i < query.length() && query.charAt(i) == ']')
+                    i++;
+                while (i < query.length() && query.charAt(i) != ']')
+                {
+                    if (query.charAt(i) == '\\')
+                        i++;
+                    i++;
+                }
+                literal = false;
+                runs.add(run.toString());
+                run.setLength(0);
+                break;
+
+            case '(':
+                if (i + 2 < query.length() && query.charAt(i + 1) == '?' &&
+                    (Character.isLetter(query.charAt(i + 2)) ||
+                     query.charAt(i + 2) == '-'))
+                    return EMPTY;
+
+                depth++;
+                literal = false;
+                runs.add(run.toString());
+                run.setLength(0);
+                break;
+
+            case ')':
+                depth--;
+                literal = false;
+                break;
+
+            case '|':
+                if (depth == 0)
+                    return EMPTY;
+                break;
+
+            case '*':
+            case '?':
+            case '{':
+                // The last char is optional
+                if (literal)
+                    run.setLength(run.length() - 1);
+
+                if (c == '{')
+                    while (i < query.length() && query.charAt(i) != '}')
+                        i++;
+
+                literal = false;
+                runs.add(run.toString());
+                run.setLength(0);
+                break;
+
+            case '+':
+            case '.':
+            case '^':
+            case '$':
+                literal = false;
+                runs.add(run.toString());
+                run.setLength(0);
+                break;
+
+            default:
+                literal = (depth == 0);
+                if (literal)
+                    run.append(c);
+                break;
+            }
+        }
+
+        runs.add(run.toString());
+
+        int[] result = EMPTY;
+        for (String s: runs)
+        {
+            int[] more = trigrams(s.toCharArray(), s.length());
+            int[] merged = Arrays.copyOf(result, result.length + more.length);
+            System.arraycopy(more, 0, merged, result.length, more.length);
+            result = unique(merged, merged.length);
+        }
+
+        return result;
+    }
+
+    // escapeEnd
+    //
+    // Returns the index of the last char of the escape with the letter
+    // or digit at i, past any argument, such as the digits of \x41 or
+    // \0101, or the name in \k<name>
+    private static int escapeEnd(String query, int i)
+    {
+        int last = query.length() - 1;
+        char c = query.charAt(i);
+        switch (c)
+        {
+        case 'x':
+            if (i < last && query.charAt(i + 1) == '{')
+                return closing(query, i + 1, '}');
+            return Math.min(i + 2, last);
+
+        case 'u':
+            return Math.min(i + 4, last);
+
+        case 'c':
+            return Math.min(i + 1, last);
+
+        case 'k':
+            if (i < last && query.charAt(i + 1) == '<')
+                return closing(query, i + 1, '>');
+            return i;
+
+        case 'p':
+        case 'P':
+        case 'N':
+            if (i < last && query.charAt(i + 1) == '{')
+                return closing(query, i + 1, '}');
+            return (c == 'N')? i: Math.min(i + 1, last);
+
+        case '0':
+            // Up to three octal digits
+            int end = i;
+            while (end < last && end - i < 3 &&
+                   query.charAt(end + 1) >= '0' &&
+                   query.charAt(end + 1) <= '7')
+                end++;
+            return end;
+
+        default:
+            // A back reference may have more digits
+            if (Character.isDigit(c))
+                while (i < last && Character.isDigit(query.charAt(i + 1)))
+                    i++;
+            return i;
+        }
+    }
+
+    // closing
+    //
+    // Returns the index of the closing char at or after i, or the end
+    private static int closing(String query, int i, char c)
+    {
+        int index = query.indexOf(c, i);
+        return (index < 0)? query.length() - 1: index;
+    }
+
+    // unique
+    private static int[] unique(int[] values, int count)
+    {
+        Arrays.sort(values, 0, count);
+        int length = 0;
+        for (int i = 0; i < count; i++)
+            if (length == 0 || values[length - 1] != values[i])
+                values[length++] = values[i];
+
+        return Arrays.copyOf(values, length);
+    }
+
+    // load
+    //
+    // Reads the index the first time, starts again if it can't be
+    // read
+    public synchronized void load()
+    {
+        if (loaded)
+            return;
+
+        loaded = true;
+        if (!store.exists())
+            return;
+
+        try (DataInputStream in = new DataInputStream
+             (new BufferedInputStream(new FileInputStream(store))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return;
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                Entry entry = new Entry(in.readUTF(), in.readLong(),
+                                        in.readLong(), in.readBoolean(), i);
+                entries.put(entry.path, entry);
+                ids.add(entry);
+            }
+
+            int trigrams = in.readInt();
+            for (int i = 0; i < trigrams; i++)
+            {
+                int trigram = in.readInt();
+                int size = readVarint(in);
+                Postings list = new Postings(size);
+                int id = 0;
+                for (int j = 0; j < size; j++)
+                {
+                    id += readVarint(in);
+                    list.add(id);
+                }
+
+                postings.put(trigram, list);
+            }
+        }
+
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            entries.clear();
+            ids.clear();
+            postings.clear();
+        }
+    }
+
+    // save
+    //
+    // Drops the old ids, and writes the index if it has changed
+    public synchronized void save()
+    {
+        if (!changed)
+            return;
+
+        compact();
+
+        File temp = new File(store.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream
+             (new BufferedOutputStream(new FileOutputStream(temp))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(ids.size());
+            for (Entry entry: ids)
+            {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.modified);
+                out.writeLong(entry.size);
+                out.writeBoolean(entry.indexed);
+            }
+
+            // Ids as differences, which are mostly small
+            Integer[] keys = postings.keySet().toArray(new Integer[0]);
+            Arrays.sort(keys);
+            out.writeInt(keys.length);
+            for (Integer trigram: keys)
+            {
+                Postings list = postings.get(trigram);
+                out.writeInt(trigram);
+                writeVarint(out, list.count);
+                int last = 0;
+                for (int i = 0; i < list.count; i++)
+                {
+                    writeVarint(out, list.ids[i] - last);
+                    last = list.ids[i];
+                }
+            }
+        }
+
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            temp.delete();
+            return;
+        }
+
+        if (temp.renameTo(store))
+            changed = false;
+    }
+
+    // compact
+    //
+    // Gives the current files new ids, in order, and removes the old
+    // ones from the lists
+    private void compact()
+    {
+        int[] map = new int[ids.size()];
+        List<Entry> live = new ArrayList<>();
+        for (int i = 0; i < map.length; i++)
+        {
+            Entry entry = ids.get(i);
+            map[i] = (entry == null)? -1: live.size();
+            if (entry != null)
+            {
+                entry.id = live.size();
+                live.add(entry);
+            }
+        }
+
+        ids.clear();
+        ids.addAll(live);
+
+        Iterator<Postings> iterator = postings.values().iterator();
+        while (iterator.hasNext())
+        {
+            Postings list = iterator.next();
+            int count = 0;
+            for (int i = 0; i < list.count; i++)
+                if (map[list.ids[i]] >= 0)
+                    list.ids[count++] = map[list.ids[i]];
+
+            list.count = count;
+            if (count == 0)
+                iterator.remove();
+        }
+    }
+
+    // get
+    //
+    // Returns the entry for the file, or null if it isn't in the
+    // index or has changed
+    public Entry get(File file)
+    {
+        long modified = file.lastModified();
+        long size = file.length();
+
+        synchronized (this)
+        {
+            Entry entry = entries.get(file.getPath());
+            if (entry == null || entry.modified != modified ||
+                entry.size != size)
+                return null;
+
+            return entry;
+        }
+    }
+
+    // put
+    //
+    // Adds the file with its trigrams, replacing any entry for it
+    public synchronized void put(File file, long modified, long size,
+                                 boolean indexed, int[] trigrams)
+    {
+        remove(file.getPath());
+
+        Entry entry = new Entry(file.getPath(), modified, size, indexed,
+                                ids.size());
+        entries.put(entry.path, entry);
+        ids.add(entry);
+
+        for (int trigram: trigrams)
+        {
+            Postings list = postings.get(trigram);
+            if (list == null)
+            {
+                list = new Postings(1);
+                postings.put(trigram, list);
+            }
+
+            list.add(entry.id);
+        }
+
+        changed = true;
+    }
+
+    // remove
+    private void remove(String path)
+    {
+        Entry entry = entries.remove(path);
+        if (entry != null)
+        {
+            ids.set(entry.id, null);
+            changed = true;
+        }
+    }
+
+    // retain
+    //
+    // Removes the files in the folders that weren't found
+    public synchronized void retain(Collection<File> roots, Set<String> found)
+    {
+        for (File root: roots)
+        {
+            String folder = root.getPath() + File.separator;
+            for (Entry entry: new ArrayList<>(entries.values()))
+                if ((entry.path.equals(root.getPath()) ||
+                     entry.path.startsWith(folder)) &&
+                    !found.contains(entry.path))
+                    remove(entry.path);
+        }
+    }
+
+    // candidates
+    //
+    // Returns the ids of the files that contain all the trigrams, or
+    // null for all the files if there aren't any trigrams
+    public synchronized BitSet candidates(int[] trigrams)
+    {
+        if (trigrams.length == 0)
+            return null;
+
+        // Start with the shortest list
+        Postings[] lists = new Postings[trigrams.length];
+        for (int i = 0; i < trigrams.length; i++)
+        {
+            lists[i] = postings.get(trigrams[i]);
+            if (lists[i] == null)
+                return new BitSet();
+        }
+
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.count, b.count));
+
+        int[] result = Arrays.copyOf(lists[0].ids, lists[0].count);
+        int count = result.length;
+        for (int l = 1; l < lists.length && count > 0; l++)
+        {
+            Postings list = lists[l];
+            int length = 0;
+            int j = 0;
+            for (int i = 0; i < count; i++)
+            {
+                while (j < list.count && list.ids[j] < result[i])
+                    j++;
+
+                if (j < list.count && list.ids[j] == result[i])
+                    result[length++] = result[i];
+            }
+
+            count = length;
+        }
+
+        BitSet bits = new BitSet();
+        for (int i = 0; i < count; i++)
+            bits.set(result[i]);
+
+        return bits;
+    }
+
+    // readVarint
+    private static int readVarint(DataInputStream in) throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; ; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    // writeVarint
+    private static void writeVarint(DataOutputStream out, int value)
+        throws IOException
+    {
+        while ((value & ~0x7f) != 0)
+        {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte(value);
+    }
+
+    // Entry class
+    public static class Entry
+    {
+        private final String path;
+        private final long modified;
+        private final long size;
+        private final boolean indexed;
+        private int id;
+
+        // Entry
+        private Entry(String path, long modified, long size,
+                      boolean indexed, int id)
+        {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+            this.indexed = indexed;
+            this.id = id;
+        }
+
+        // getId
+        public int getId()
+        {
+            return id;
+        }
+
+        // isIndexed
+        //
+        // Returns false for files too big to index, which are always
+        // searched
+        public boolean isIndexed()
+        {
+            return indexed;
+        }
+    }
+
+    // Postings class
+    //
+    // The ids of the files a trigram is in, in order
+    private static class Postings
+    {
+        private int[] ids;
+        private int count;
+
+        // Postings
+        private Postings(int size)
+        {
+            ids = new int[Math.max(size, 1)];
+        }
+
+        // add
+        private void add(int id)
+        {
+            if (count == ids.length)
+                ids = Arrays.copyOf(ids, count * 2);
+
+            ids[count++] = id;
+        }
+    }
+}
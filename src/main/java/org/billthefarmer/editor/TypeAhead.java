@@ -0,0 +1,260 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2017  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// TypeAhead class
+//
+// Searches for a query as it is typed. Each search keeps the places
+// its query matched, all of them from where it started up to where
+// it has looked. When a literal query is extended, only those places
+// are checked again, and the text is only searched past them. When
+// the query is shortened, the earlier search is taken back, along
+// with its match. An edit to the text throws the searches away.
+public class TypeAhead
+{
+    private final static String TAG = "TypeAhead";
+
+    private final List<Step> steps = new ArrayList<>();
+    private int version = -1;
+    private final long timeout;
+    private Step step;
+
+    // TypeAhead
+    public TypeAhead()
+    {
+        this(0);
+    }
+
+    // TypeAhead
+    //
+    // Searches may take up to timeout milliseconds, see
+    // Search.setTimeout()
+    public TypeAhead(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    // find
+    //
+    // Finds the first match of the query at or after from, and
+    // returns true if there is one. Throws Search.TimedOutException
+    // if the search takes too long.
+    public boolean find(CharSequence text, int version, String query,
+                        int from)
+    {
+        if (version != this.version)
+        {
+            steps.clear();
+            this.version = version;
+        }
+
+        // Take back the steps the query no longer starts with
+        while (!steps.isEmpty() &&
+               !query.startsWith(steps.get(steps.size() - 1).query))
+            steps.remove(steps.size() - 1);
+
+        Step last = steps.isEmpty()? null: steps.get(steps.size() - 1);
+        if (last != null && last.query.equals(query))
+        {
+            step = last;
+            return step.start >= 0;
+        }
+
+        Search search = Search.compile(query);
+        if (search == null)
+        {
+            step = null;
+            return false;
+        }
+
+        search.setTimeout(timeout);
+
+        step = new Step(query, search, from);
+        if (last != null && last.literal && step.literal)
+            step.extend(text, last);
+
+        step.scan(text);
+        steps.add(step);
+        return step.start >= 0;
+    }
+
+    // getSearch
+    //
+    // Returns the current search, or null if the query isn't valid
+    public Search getSearch()
+    {
+        return (step == null)? null: step.search;
+    }
+
+    // start
+    public int start()
+    {
+        return step.start;
+    }
+
+    // end
+    public int end()
+    {
+        return step.end;
+    }
+
+    // next
+    //
+    // Returns where to look for the match after this one
+    public int next()
+    {
+        return (step.end > step.start)? step.end: step.end + 1;
+    }
+
+    // clear
+    public void clear()
+    {
+        steps.clear();
+        step = null;
+    }
+
+    // Step class
+    //
+    // One query, the places it matched from index up to scanned, and
+    // the first of them, or -1
+    private static class Step
+    {
+        private final String query;
+        private final Search search;
+        private final boolean literal;
+        private final int index;
+
+        private int[] starts = new int[Constants.TYPE_AHEAD_MATCHES];
+        private int count;
+        private int scanned;
+
+        private int start = -1;
+        private int end = -1;
+
+        // Step
+        private Step(String query, Search search, int index)
+        {
+            this.query = query;
+            this.search = search;
+            this.index = index;
+            literal = Search.isLiteral(query);
+            scanned = index;
+        }
+
+        // extend
+        //
+        // Keeps the places the last, shorter, query matched that this
+        // one matches too. There can be no others before where the
+        // last one had looked up to.
+        private void extend(CharSequence text, Step last)
+        {
+            if (last.index > index || last.scanned <= index)
+                return;
+
+            for (int i = 0; i < last.count; i++)
+            {
+                int place = last.starts[i];
+                if (place >= index && matches(text, place))
+                    add(place);
+            }
+
+            scanned = last.scanned;
+        }
+
+        // scan
+        //
+        // Sets the first match, searching on from scanned if none of
+        // the places matched, then notes the places after it, up to
+        // TYPE_AHEAD_MATCHES of them within TYPE_AHEAD_CHARS
+        private void scan(CharSequence text)
+        {
+            int length = text.length();
+            if (count == 0)
+            {
+                if (!search.find(text, scanned, length))
+                {
+                    scanned = length;
+                    return;
+                }
+
+                add(search.start());
+                scanned = search.start() + 1;
+                end = search.end();
+            }
+
+            else
+                end = starts[0] + query.length();
+
+            start = starts[0];
+
+            // A regex could match differently from each place, so
+            // only its first match is kept
+            if (!literal)
+                return;
+
+            int limit = Math.min(length, start + Constants.TYPE_AHEAD_CHARS);
+            while (count < Constants.TYPE_AHEAD_MATCHES && scanned < limit)
+            {
+                if (!search.find(text, scanned, length))
+                {
+                    scanned = length;
+                    break;
+                }
+
+                if (search.start() >= limit)
+                {
+                    scanned = search.start();
+                    break;
+                }
+
+                add(search.start());
+                scanned = search.start() + 1;
+            }
+        }
+
+        // matches
+        private boolean matches(CharSequence text, int place)
+        {
+            if (place + query.length() > text.length())
+                return false;
+
+            for (int i = 0; i < query.length(); i++)
+                if (text.charAt(place + i) != query.charAt(i))
+                    return false;
+
+            return true;
+        }
+
+        // add
+        private void add(int place)
+        {
+            if (count == starts.length)
+                starts = Arrays.copyOf(starts, count * 2);
+
+            starts[count++] = place;
+        }
+    }
+}